@@ -0,0 +1,74 @@
+package com.wotifgroup.zkfss.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wotifgroup.zkfss.ZKFeatureSwitchService;
+import com.wotifgroup.zkfss.benchmark.FeatureSwitchFixture.OverrideLevel;
+
+/**
+ * Latency of the first lookup of a feature switch, i.e. the cost of setting up its watches (or, with non-blocking lookups, of
+ * handing the set up to the background). Every invocation looks up a feature switch the service has not seen before.
+ * 
+ * @author lazjen
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 200, batchSize = 1)
+@Measurement(iterations = 1000, batchSize = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColdLookupBenchmark {
+
+    @Param({ "APPLICATION_HOST", "BASE", "NONE" })
+    public OverrideLevel level;
+
+    @Param({ "false", "true" })
+    public boolean nonBlocking;
+
+    private FeatureSwitchFixture fixture;
+    private ZKFeatureSwitchService service;
+    private int count;
+    private String key;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new FeatureSwitchFixture();
+        service = fixture.newService();
+        if (nonBlocking) {
+            service.enableNonBlockingLookup();
+        }
+        service.start();
+    }
+
+    @Setup(Level.Invocation)
+    public void nextFeatureSwitch() throws Exception {
+        key = "cold" + count++;
+        fixture.createFeatureSwitch(key, level, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        service.stop();
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean firstLookup() {
+        return service.isEnabled(key);
+    }
+}
@@ -0,0 +1,145 @@
+package com.wotifgroup.zkfss.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.InstanceSpec;
+import org.apache.curator.test.TestingCluster;
+import org.apache.curator.test.TestingServer;
+
+import com.wotifgroup.zkfss.ZKFeatureSwitchService;
+
+/**
+ * A local Zookeeper server (on a free port), or ensemble of servers, with an admin client for creating feature switches, shared
+ * by the benchmarks.
+ * 
+ * @author lazjen
+ *
+ */
+public class FeatureSwitchFixture implements Closeable {
+
+    public static final String NAMESPACE = "/bench/";
+    public static final String APPLICATION_NAME = "benchApp";
+
+    public static final byte[] TRUE = "true".getBytes();
+    public static final byte[] FALSE = "false".getBytes();
+
+    /**
+     * The level a feature switch value is set at, i.e. the level that answers a lookup.
+     */
+    public enum OverrideLevel {
+        APPLICATION_HOST, APPLICATION, HOST, BASE, NONE
+    }
+
+    private final Closeable server;
+    private final String connectString;
+    private final List<Integer> serverPorts = new ArrayList<Integer>();
+    private final CuratorFramework admin;
+    private final String hostname;
+
+    public FeatureSwitchFixture() throws Exception {
+        this(1);
+    }
+
+    /**
+     * @param servers
+     *            the number of servers, more than 1 for an ensemble (TestingCluster)
+     */
+    public FeatureSwitchFixture(int servers) throws Exception {
+        if (servers > 1) {
+            TestingCluster cluster = new TestingCluster(servers);
+            cluster.start();
+            for (InstanceSpec instance : cluster.getInstances()) {
+                serverPorts.add(instance.getPort());
+            }
+            server = cluster;
+            connectString = cluster.getConnectString();
+        } else {
+            TestingServer testingServer = new TestingServer();
+            serverPorts.add(testingServer.getPort());
+            server = testingServer;
+            connectString = testingServer.getConnectString();
+        }
+        admin = CuratorFrameworkFactory.newClient(connectString, new ExponentialBackoffRetry(100, 3));
+        admin.start();
+        admin.create().forPath(NAMESPACE.substring(0, NAMESPACE.length() - 1));
+        hostname = InetAddress.getLocalHost().getHostName();
+    }
+
+    public String getConnectString() {
+        return connectString;
+    }
+
+    /**
+     * @return the client port of each server, e.g. for four letter word commands
+     */
+    public List<Integer> getServerPorts() {
+        return serverPorts;
+    }
+
+    public CuratorFramework getAdmin() {
+        return admin;
+    }
+
+    /**
+     * @return a service for the benchmark application on this host, not yet started
+     */
+    public ZKFeatureSwitchService newService() {
+        return new ZKFeatureSwitchService().setConnectString(connectString).setFeatureSwitchNamespace(NAMESPACE)
+                .setApplicationName(APPLICATION_NAME).enableHostnameSubKey();
+    }
+
+    /**
+     * Creates a feature switch whose value is answered by the given override level. Every level below the answering one is
+     * set to the opposite value, so a lookup resolving at the wrong level is visible.
+     */
+    public void createFeatureSwitch(String key, OverrideLevel level, boolean value) throws Exception {
+        if (level == OverrideLevel.NONE) {
+            return;
+        }
+        byte[] data = value ? TRUE : FALSE;
+        byte[] otherData = value ? FALSE : TRUE;
+        String path = NAMESPACE + key;
+        admin.create().forPath(path, level == OverrideLevel.BASE ? data : otherData);
+        if (level == OverrideLevel.BASE) {
+            return;
+        }
+        admin.create().forPath(path + "/" + hostname, level == OverrideLevel.HOST ? data : otherData);
+        if (level == OverrideLevel.HOST) {
+            return;
+        }
+        admin.create().forPath(path + "/" + APPLICATION_NAME, level == OverrideLevel.APPLICATION ? data : otherData);
+        if (level == OverrideLevel.APPLICATION) {
+            return;
+        }
+        admin.create().forPath(path + "/" + APPLICATION_NAME + "/" + hostname, data);
+    }
+
+    /**
+     * @return the path of the node answering lookups for a feature switch created at the given level
+     */
+    public String answeringPath(String key, OverrideLevel level) {
+        String path = NAMESPACE + key;
+        switch (level) {
+            case APPLICATION_HOST:
+                return path + "/" + APPLICATION_NAME + "/" + hostname;
+            case APPLICATION:
+                return path + "/" + APPLICATION_NAME;
+            case HOST:
+                return path + "/" + hostname;
+            default:
+                return path;
+        }
+    }
+
+    public void close() throws IOException {
+        admin.close();
+        server.close();
+    }
+}
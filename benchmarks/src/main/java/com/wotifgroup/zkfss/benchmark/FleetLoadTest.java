@@ -0,0 +1,304 @@
+package com.wotifgroup.zkfss.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.wotifgroup.zkfss.FeatureSwitchListener;
+import com.wotifgroup.zkfss.ZKFeatureSwitchService;
+
+/**
+ * Load and scale test: a fleet of simulated clients (each a ZKFeatureSwitchService with its own connection, unless shared
+ * watches are on) watching a set of feature switches on a local Zookeeper server or ensemble, while the feature switches are
+ * changed at a fixed rate. Reports the watches held by the ensemble, the client heap, the ensemble request rate and the
+ * propagation latency from a setData() to each client's listener. Like MemoryPerSwitch this is a plain program:
+ * <P>
+ * java -cp target/benchmarks.jar com.wotifgroup.zkfss.benchmark.FleetLoadTest [name=value ...]
+ * <P>
+ * Options (defaults in brackets):
+ * <ul>
+ * <li>servers - number of Zookeeper servers, more than 1 for a TestingCluster [1]</li>
+ * <li>clients - number of simulated clients [100]</li>
+ * <li>switches - number of feature switches, each looked up by every client [1000]</li>
+ * <li>updatesPerSecond - rate of feature switch changes, spread round robin over the feature switches [100]</li>
+ * <li>durationSeconds - length of the update phase [30]</li>
+ * <li>mode - how clients load the feature switches: lookup, preload or treeWatch [lookup]</li>
+ * <li>sharedWatches - whether the clients share watches and a connection (see enableSharedWatches()) [false]</li>
+ * <li>maxP99Millis - fail (exit status 1) if the p99 propagation latency is above this, 0 for no limit [0]</li>
+ * </ul>
+ * The run also fails if any change has not reached every client 10 seconds after the update phase, so it can be used as a
+ * regression gate.
+ *
+ * @author lazjen
+ *
+ */
+public class FleetLoadTest {
+
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("servers", "1");
+        options.put("clients", "100");
+        options.put("switches", "1000");
+        options.put("updatesPerSecond", "100");
+        options.put("durationSeconds", "30");
+        options.put("mode", "lookup");
+        options.put("sharedWatches", "false");
+        options.put("maxP99Millis", "0");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !options.containsKey(arg.substring(0, separator))) {
+                System.err.println("Unknown option: " + arg + ", expected one of " + options.keySet());
+                System.exit(2);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        System.out.println("options: " + options);
+        System.exit(new FleetLoadTest(options).run() ? 0 : 1);
+    }
+
+    private final int servers;
+    private final int clientCount;
+    private final int switches;
+    private final int updatesPerSecond;
+    private final int durationSeconds;
+    private final String mode;
+    private final boolean sharedWatches;
+    private final long maxP99Millis;
+
+    /**
+     * Time of the last change of each feature switch, and the number of changes (the value is true after an odd number).
+     */
+    private final AtomicLongArray writeNanos;
+    private final AtomicIntegerArray writeCounts;
+    private final AtomicLong seen = new AtomicLong();
+    private final Latencies latencies = new Latencies();
+
+    FleetLoadTest(Map<String, String> options) {
+        servers = Integer.parseInt(options.get("servers"));
+        clientCount = Integer.parseInt(options.get("clients"));
+        switches = Integer.parseInt(options.get("switches"));
+        updatesPerSecond = Integer.parseInt(options.get("updatesPerSecond"));
+        durationSeconds = Integer.parseInt(options.get("durationSeconds"));
+        mode = options.get("mode");
+        sharedWatches = Boolean.parseBoolean(options.get("sharedWatches"));
+        maxP99Millis = Long.parseLong(options.get("maxP99Millis"));
+        writeNanos = new AtomicLongArray(switches);
+        writeCounts = new AtomicIntegerArray(switches);
+    }
+
+    boolean run() throws Exception {
+        FeatureSwitchFixture fixture = new FeatureSwitchFixture(servers);
+        List<ZKFeatureSwitchService> clients = new ArrayList<ZKFeatureSwitchService>();
+        try {
+            for (int i = 0; i < switches; i++) {
+                fixture.createFeatureSwitch(key(i), FeatureSwitchFixture.OverrideLevel.BASE, false);
+            }
+
+            long heapBefore = MemoryPerSwitch.usedHeap();
+            long startNanos = System.nanoTime();
+            clients.addAll(startClients(fixture));
+            long startMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            long heapAfter = MemoryPerSwitch.usedHeap();
+            System.out.printf("clients started in %d ms, client heap %d KB (%d bytes per client)%n", startMillis,
+                    (heapAfter - heapBefore) / 1024, (heapAfter - heapBefore) / clientCount);
+            System.out.printf("ensemble watches %d%n", sum(fixture, "wchs", "Total watches:"));
+
+            long receivedBefore = sum(fixture, "srvr", "Received:");
+            long updates = update(fixture);
+            long receivedAfter = sum(fixture, "srvr", "Received:");
+            System.out.printf("%d updates, ensemble received %.0f requests/s%n", updates, (receivedAfter - receivedBefore)
+                    / (double) durationSeconds);
+
+            long expected = updates * clientCount;
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+            while (seen.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            long[] sorted = latencies.sorted();
+            long p50 = percentile(sorted, 50);
+            long p99 = percentile(sorted, 99);
+            System.out.printf("propagation latency p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d of %d changes seen%n", p50 / 1000.0,
+                    p99 / 1000.0, (sorted.length == 0 ? 0 : sorted[sorted.length - 1]) / 1000.0, seen.get(), expected);
+
+            boolean passed = true;
+            if (seen.get() < expected) {
+                System.out.println("FAILED: not every change reached every client");
+                passed = false;
+            }
+            if (maxP99Millis > 0 && p99 > TimeUnit.MILLISECONDS.toMicros(maxP99Millis)) {
+                System.out.printf("FAILED: p99 propagation latency above %d ms%n", maxP99Millis);
+                passed = false;
+            }
+            return passed;
+        } finally {
+            for (ZKFeatureSwitchService client : clients) {
+                client.stop();
+            }
+            fixture.close();
+        }
+    }
+
+    private List<ZKFeatureSwitchService> startClients(final FeatureSwitchFixture fixture) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<ZKFeatureSwitchService>> futures = new ArrayList<Future<ZKFeatureSwitchService>>();
+            for (int c = 0; c < clientCount; c++) {
+                futures.add(executor.submit(new Callable<ZKFeatureSwitchService>() {
+
+                    public ZKFeatureSwitchService call() throws Exception {
+                        return startClient(fixture);
+                    }
+                }));
+            }
+            List<ZKFeatureSwitchService> started = new ArrayList<ZKFeatureSwitchService>();
+            for (Future<ZKFeatureSwitchService> future : futures) {
+                started.add(future.get());
+            }
+            return started;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private ZKFeatureSwitchService startClient(FeatureSwitchFixture fixture) {
+        // the simulated clients share a host, so only the application override level is used
+        ZKFeatureSwitchService service = fixture.newService().disableHostnameSubKey().setListenerCoalesceMillis(0);
+        if ("preload".equals(mode)) {
+            service.enablePreload();
+        } else if ("treeWatch".equals(mode)) {
+            service.enableNamespaceTreeWatch();
+        } else if (!"lookup".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (sharedWatches) {
+            service.enableSharedWatches();
+        }
+        service.addListener(new FeatureSwitchListener() {
+
+            public void featureSwitchesChanged(Map<String, Boolean> changes) {
+                long now = System.nanoTime();
+                for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                    int i = Integer.parseInt(change.getKey().substring(6));
+                    if (change.getValue() == (writeCounts.get(i) % 2 == 1)) {
+                        latencies.add(TimeUnit.NANOSECONDS.toMicros(now - writeNanos.get(i)));
+                        seen.incrementAndGet();
+                    }
+                }
+            }
+        });
+        service.start();
+        for (int i = 0; i < switches; i++) {
+            service.isEnabled(key(i));
+        }
+        return service;
+    }
+
+    /**
+     * Changes the feature switches round robin at the configured rate for the configured duration.
+     *
+     * @return the number of changes made
+     */
+    private long update(FeatureSwitchFixture fixture) throws Exception {
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / updatesPerSecond;
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long updates = 0;
+        for (long next = startNanos; next < endNanos; next += periodNanos) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            int i = (int) (updates++ % switches);
+            boolean value = writeCounts.get(i) % 2 == 0;
+            writeNanos.set(i, System.nanoTime());
+            writeCounts.incrementAndGet(i);
+            fixture.getAdmin().setData().inBackground()
+                    .forPath(FeatureSwitchFixture.NAMESPACE + key(i), value ? FeatureSwitchFixture.TRUE : FeatureSwitchFixture.FALSE);
+        }
+        return updates;
+    }
+
+    private static String key(int i) {
+        return "switch" + i;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile / 100.0) - 1)];
+    }
+
+    /**
+     * Sums a statistic ("name: value") over the servers, from a four letter word command.
+     */
+    private static long sum(FeatureSwitchFixture fixture, String command, String name) throws IOException {
+        long total = 0;
+        for (int port : fixture.getServerPorts()) {
+            for (String line : fourLetterWord(port, command).split("\n")) {
+                if (line.startsWith(name)) {
+                    total += Long.parseLong(line.substring(name.length()).trim());
+                }
+            }
+        }
+        return total;
+    }
+
+    private static String fourLetterWord(int port, String command) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        try {
+            socket.getOutputStream().write(command.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Propagation latencies (in micros), recorded from the listener threads of all the clients.
+     */
+    private static class Latencies {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        synchronized void add(long micros) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = micros;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.wotifgroup.zkfss.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wotifgroup.zkfss.FeatureSwitch;
+import com.wotifgroup.zkfss.ZKFeatureSwitchService;
+import com.wotifgroup.zkfss.benchmark.FeatureSwitchFixture.OverrideLevel;
+
+/**
+ * Steady state lookup throughput of feature switches answered at each override level, where "NONE" is a feature switch
+ * that does not exist (a miss, answered by the default). missPercent mixes lookups of non existent feature switches in.
+ * <P>
+ * Run with e.g. "-t 1", "-t 4" to vary the number of threads; the *AllThreads methods use one thread per CPU.
+ * 
+ * @author lazjen
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IsEnabledBenchmark {
+
+    private static final int FEATURE_SWITCH_COUNT = 256; // power of two, see nextIndex()
+
+    @Param({ "APPLICATION_HOST", "APPLICATION", "HOST", "BASE", "NONE" })
+    public OverrideLevel level;
+
+    @Param({ "0", "50" })
+    public int missPercent;
+
+    private FeatureSwitchFixture fixture;
+    private ZKFeatureSwitchService service;
+    private String[] keys;
+    private FeatureSwitch[] boundFeatureSwitches;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int index;
+
+        int nextIndex() {
+            return index++ & (FEATURE_SWITCH_COUNT - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new FeatureSwitchFixture();
+        keys = new String[FEATURE_SWITCH_COUNT];
+        int misses = FEATURE_SWITCH_COUNT * missPercent / 100;
+        for (int i = 0; i < FEATURE_SWITCH_COUNT; i++) {
+            // spread the misses evenly
+            boolean miss = (i * misses) / FEATURE_SWITCH_COUNT != ((i + 1) * misses) / FEATURE_SWITCH_COUNT;
+            keys[i] = "switch" + i;
+            fixture.createFeatureSwitch(keys[i], miss ? OverrideLevel.NONE : level, true);
+        }
+        service = fixture.newService().start();
+        boundFeatureSwitches = new FeatureSwitch[FEATURE_SWITCH_COUNT];
+        for (int i = 0; i < FEATURE_SWITCH_COUNT; i++) {
+            boundFeatureSwitches[i] = service.bind(keys[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        service.stop();
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean isEnabled(Cursor cursor) {
+        return service.isEnabled(keys[cursor.nextIndex()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean isEnabledAllThreads(Cursor cursor) {
+        return service.isEnabled(keys[cursor.nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean boundIsEnabled(Cursor cursor) {
+        return boundFeatureSwitches[cursor.nextIndex()].isEnabled();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean boundIsEnabledAllThreads(Cursor cursor) {
+        return boundFeatureSwitches[cursor.nextIndex()].isEnabled();
+    }
+}
@@ -0,0 +1,65 @@
+package com.wotifgroup.zkfss.benchmark;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+
+import com.wotifgroup.zkfss.ZKFeatureSwitchService;
+import com.wotifgroup.zkfss.benchmark.FeatureSwitchFixture.OverrideLevel;
+
+/**
+ * Measures the heap retained by a service per feature switch, for feature switches answered at each override level. JMH
+ * measures time rather than retained memory, so this is a plain program:
+ * <P>
+ * java -cp target/benchmarks.jar com.wotifgroup.zkfss.benchmark.MemoryPerSwitch [switchCount]
+ * 
+ * @author lazjen
+ *
+ */
+public class MemoryPerSwitch {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        for (OverrideLevel level : OverrideLevel.values()) {
+            for (boolean namespaceTreeWatch : new boolean[] { false, true }) {
+                FeatureSwitchFixture fixture = new FeatureSwitchFixture();
+                try {
+                    for (int i = 0; i < count; i++) {
+                        fixture.createFeatureSwitch("switch" + i, level, true);
+                    }
+                    // the client is created up front so that only the service's own state is measured
+                    CuratorFramework client =
+                            CuratorFrameworkFactory.newClient(fixture.getConnectString(), new ExponentialBackoffRetry(100, 3));
+                    client.start();
+                    client.blockUntilConnected();
+                    ZKFeatureSwitchService service = fixture.newService().setCuratorFrameworkClient(client);
+                    if (namespaceTreeWatch) {
+                        service.enableNamespaceTreeWatch();
+                    }
+                    long before = usedHeap();
+                    service.start();
+                    for (int i = 0; i < count; i++) {
+                        service.isEnabled("switch" + i);
+                    }
+                    long after = usedHeap();
+                    System.out.printf("level=%-16s treeWatch=%-5s bytes/switch=%d%n", level, namespaceTreeWatch,
+                            (after - before) / count);
+                    service.stop();
+                } finally {
+                    fixture.close();
+                }
+            }
+        }
+    }
+
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
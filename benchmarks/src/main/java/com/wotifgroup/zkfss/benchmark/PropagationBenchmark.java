@@ -0,0 +1,79 @@
+package com.wotifgroup.zkfss.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wotifgroup.zkfss.FeatureSwitch;
+import com.wotifgroup.zkfss.ZKFeatureSwitchService;
+import com.wotifgroup.zkfss.benchmark.FeatureSwitchFixture.OverrideLevel;
+
+/**
+ * End to end latency from a setData() on the node answering a feature switch to the new value being visible to lookups.
+ * 
+ * @author lazjen
+ *
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PropagationBenchmark {
+
+    private static final String KEY = "propagation";
+
+    @Param({ "APPLICATION_HOST", "BASE" })
+    public OverrideLevel level;
+
+    @Param({ "false", "true" })
+    public boolean namespaceTreeWatch;
+
+    private FeatureSwitchFixture fixture;
+    private ZKFeatureSwitchService service;
+    private FeatureSwitch featureSwitch;
+    private String path;
+    private boolean value = true;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new FeatureSwitchFixture();
+        fixture.createFeatureSwitch(KEY, level, value);
+        path = fixture.answeringPath(KEY, level);
+        ZKFeatureSwitchService newService = fixture.newService();
+        if (namespaceTreeWatch) {
+            newService.enableNamespaceTreeWatch();
+        }
+        service = newService.start();
+        featureSwitch = service.bind(KEY);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        service.stop();
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean setDataToVisible() throws Exception {
+        value = !value;
+        fixture.getAdmin().setData().forPath(path, value ? FeatureSwitchFixture.TRUE : FeatureSwitchFixture.FALSE);
+        while (service.isEnabled(KEY) != value || featureSwitch.isEnabled() != value) {
+            Thread.yield();
+        }
+        return value;
+    }
+}
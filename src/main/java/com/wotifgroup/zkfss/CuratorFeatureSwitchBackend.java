@@ -0,0 +1,131 @@
+package com.wotifgroup.zkfss;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+/**
+ * The default backend: watches the nodes in Zookeeper, either with a NodeWatch of its own per node or through the shared watch
+ * registry. The CuratorFramework (and the registry) belong to the service, which also looks after the connection state.
+ *
+ * @author lazjen
+ *
+ */
+class CuratorFeatureSwitchBackend implements FeatureSwitchBackend {
+
+    private final CuratorFramework client;
+    private final SharedWatchRegistry watchRegistry;
+    private final String featureSwitchNamespace;
+    private final NodeWatch.Pool closedWatches = new NodeWatch.Pool();
+    private final NodeWatch.FailedRefreshes failedRefreshes;
+
+    /**
+     * @param watchRegistry
+     *            the shared watch registry, or null to watch each node separately
+     */
+    CuratorFeatureSwitchBackend(CuratorFramework client, SharedWatchRegistry watchRegistry, String featureSwitchNamespace) {
+        this.client = client;
+        this.watchRegistry = watchRegistry;
+        this.featureSwitchNamespace = featureSwitchNamespace;
+        failedRefreshes = watchRegistry != null ? watchRegistry.getFailedRefreshes() : new NodeWatch.FailedRefreshes();
+    }
+
+    public void start() {
+    }
+
+    public Watch watch(String node, Listener listener) throws Exception {
+        CuratorWatch watch = new CuratorWatch(listener);
+        if (watchRegistry != null) {
+            watch.nodeWatch = watchRegistry.watch(featureSwitchNamespace + node, watch);
+        } else {
+            watch.nodeWatch = closedWatches.reopen(featureSwitchNamespace + node, watch);
+            if (watch.nodeWatch == null) {
+                watch.nodeWatch = new NodeWatch(client, featureSwitchNamespace + node, failedRefreshes, watch);
+                watch.nodeWatch.start();
+            }
+        }
+        return watch;
+    }
+
+    /**
+     * Starts watching a node without waiting for it to be read, so that many nodes can be read in one pipelined batch. The
+     * watch holds no data until onLoaded is called. If the node can not be read onFailed is called instead, and the watch is
+     * of no further use.
+     */
+    Watch watchInBackground(String node, Listener listener, Runnable onLoaded, Runnable onFailed) {
+        CuratorWatch watch = new CuratorWatch(listener);
+        if (watchRegistry != null) {
+            watch.nodeWatch = watchRegistry.watchInBackground(featureSwitchNamespace + node, watch, onLoaded, onFailed);
+            return watch;
+        }
+        watch.nodeWatch = closedWatches.reopen(featureSwitchNamespace + node, watch);
+        if (watch.nodeWatch != null) {
+            onLoaded.run();
+        } else {
+            watch.nodeWatch = new NodeWatch(client, featureSwitchNamespace + node, failedRefreshes, watch);
+            watch.nodeWatch.startInBackground(onLoaded, onFailed);
+        }
+        return watch;
+    }
+
+    /**
+     * Moves a watch of another CuratorFeatureSwitchBackend (without shared watches) to this one, without reading the node: the
+     * new watch holds the value of the previous one until it is refreshed. The previous watch is closed.
+     */
+    Watch moveWatch(Watch previous, String node, Listener listener) {
+        CuratorWatch previousWatch = (CuratorWatch) previous;
+        CuratorWatch watch = new CuratorWatch(listener);
+        watch.nodeWatch = new NodeWatch(client, featureSwitchNamespace + node, failedRefreshes, watch);
+        watch.nodeWatch.startFrom(previousWatch.nodeWatch.getCurrentData());
+        previousWatch.close();
+        return watch;
+    }
+
+    public void close() {
+        closedWatches.clear();
+    }
+
+    /**
+     * @return where the watches record failed refreshes, to be refreshed once reconnected
+     */
+    NodeWatch.FailedRefreshes getFailedRefreshes() {
+        return failedRefreshes;
+    }
+
+    /**
+     * A watch and its NodeWatch listener in one object, as a service may hold tens of thousands of them.
+     */
+    private final class CuratorWatch implements Watch, NodeWatch.Listener {
+
+        private final Listener listener;
+        private NodeWatch nodeWatch;
+
+        private CuratorWatch(Listener listener) {
+            this.listener = listener;
+        }
+
+        public void nodeChanged(NodeWatch watch, ChildData currentData) {
+            if (currentData == null) {
+                listener.nodeChanged(null, 0);
+            } else {
+                listener.nodeChanged(currentData.getData(), currentData.getStat().getMtime());
+            }
+        }
+
+        public byte[] getData() {
+            ChildData currentData = nodeWatch.getCurrentData();
+            return currentData == null ? null : currentData.getData();
+        }
+
+        public void refresh(Runnable onComplete) {
+            nodeWatch.refresh(onComplete);
+        }
+
+        public void close() {
+            if (watchRegistry != null) {
+                watchRegistry.unwatch(nodeWatch, this);
+            } else {
+                nodeWatch.close(closedWatches);
+            }
+        }
+    }
+}
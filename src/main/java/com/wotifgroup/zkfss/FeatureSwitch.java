@@ -0,0 +1,31 @@
+package com.wotifgroup.zkfss;
+
+/**
+ * A feature switch bound to a single key by FeatureSwitchService.bind(). Checking a bound feature switch avoids looking up the
+ * key on every call, which makes it the cheapest way to check the same feature switch over and over.
+ * 
+ * @author lazjen
+ *
+ */
+public interface FeatureSwitch {
+
+    /**
+     * @return the feature switch key this is bound to
+     */
+    String getKey();
+
+    /**
+     * Returns the current value of the feature switch. This is updated by the service when the feature switch changes.
+     * 
+     * @return true if the feature is enabled.
+     */
+    boolean isEnabled();
+
+    /**
+     * Returns the current value of the feature switch for a context (see FeatureSwitchService.isEnabled(key, contextId)).
+     * 
+     * @param contextId the context id, or null
+     * @return true if the feature is enabled for the context.
+     */
+    boolean isEnabled(String contextId);
+}
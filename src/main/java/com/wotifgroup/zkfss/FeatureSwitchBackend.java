@@ -0,0 +1,81 @@
+package com.wotifgroup.zkfss;
+
+/**
+ * Source of feature switch node values for ZKFeatureSwitchService (see setBackend()). The service resolves, caches and
+ * looks up feature switches the same way whatever the backend; the backend only has to supply the value of each node and
+ * tell the service when it changes. The default backend watches Zookeeper nodes; InMemoryFeatureSwitchBackend and
+ * FileFeatureSwitchBackend need no Zookeeper at all.
+ * <p>
+ * Nodes are named by their path below the feature switch namespace, e.g. "X" for feature switch "X", and "X/myApp" or
+ * "X/myApp/myHost" for its overrides.
+ *
+ * @author lazjen
+ *
+ */
+public interface FeatureSwitchBackend {
+
+    /**
+     * Called when the service starts, before any node is watched.
+     *
+     * @throws Exception
+     *             if the backend can not start, in which case neither can the service
+     */
+    void start() throws Exception;
+
+    /**
+     * Starts watching a node.
+     *
+     * @param node
+     *            path of the node below the feature switch namespace
+     * @param listener
+     *            called whenever the value of the node changes, possibly on another thread. It may be called with the
+     *            current value even if it has not changed.
+     * @return the watch, already holding the current value of the node
+     * @throws Exception
+     *             if the node could not be watched
+     */
+    Watch watch(String node, Listener listener) throws Exception;
+
+    /**
+     * Called when the service stops, after every watch has been closed.
+     */
+    void close();
+
+    /**
+     * Notified of changes to a watched node.
+     */
+    interface Listener {
+
+        /**
+         * @param data
+         *            the new value (UTF-8), or null if the node does not exist
+         * @param modifiedMillis
+         *            when the node was changed, or 0 if unknown (used for the update lag metrics)
+         */
+        void nodeChanged(byte[] data, long modifiedMillis);
+    }
+
+    /**
+     * A watch of one node for one listener.
+     */
+    interface Watch {
+
+        /**
+         * @return the current value of the node (UTF-8), or null if the node does not exist
+         */
+        byte[] getData();
+
+        /**
+         * Reads the node again, e.g. because changes may have been missed, notifying the listener if it has changed.
+         *
+         * @param onComplete
+         *            called once the node has been read. Not called if the read fails.
+         */
+        void refresh(Runnable onComplete);
+
+        /**
+         * Stops watching the node. The listener may still be called for a change already being notified.
+         */
+        void close();
+    }
+}
@@ -0,0 +1,21 @@
+package com.wotifgroup.zkfss;
+
+import java.util.Map;
+
+/**
+ * Listener for changes to the values of feature switches, as registered with ZKFeatureSwitchService.addListener().
+ * 
+ * @author lazjen
+ *
+ */
+public interface FeatureSwitchListener {
+
+    /**
+     * Called with the feature switches whose (resolved) values changed. Changes arriving close together are delivered in a
+     * single call, and a feature switch that changed and changed back within that time is not included.
+     * 
+     * @param changes
+     *            the new values of the changed feature switches by key
+     */
+    void featureSwitchesChanged(Map<String, Boolean> changes);
+}
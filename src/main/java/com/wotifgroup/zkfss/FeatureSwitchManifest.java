@@ -0,0 +1,302 @@
+package com.wotifgroup.zkfss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * An aggregated manifest of a feature switch namespace: the value of every feature switch and override node, in a single
+ * versioned, binary encoded node alongside the namespace (e.g. "/zkfss.manifest" for "/zkfss/"), so a service can load the
+ * whole namespace with one read and keep it up to date with one watch (see ZKFeatureSwitchService.enableManifest()). The
+ * manifest is kept up to date by ZKFeatureSwitchWriter.
+ * <p>
+ * A manifest too big for a single node is split into chunks, with the nodes of each feature switch in the chunk picked by the
+ * hash of its key. The manifest node then holds the version each chunk was last changed at, and a reader only reads the
+ * chunks that changed since its last read. Each version of a chunk is a new child node of the manifest node, named by the
+ * chunk number and version (e.g. "3-42"), so a writer can write chunks before the manifest node that refers to them, and
+ * a reader of the previous version of the manifest still reads the previous version of every chunk.
+ * <p>
+ * Encoding: a header (magic number, format and manifest version), the number of chunks and then either the version of each
+ * chunk, or (with no chunks) the nodes. A chunk is a header (magic number, format and chunk version) followed by its nodes.
+ * Nodes are their number followed by each path below the namespace (modified UTF-8) and value.
+ *
+ * @author lazjen
+ *
+ */
+final class FeatureSwitchManifest {
+
+    /**
+     * Largest encoded node, below Zookeeper's default limit (jute.maxbuffer) of 1 MB, leaving room for the rest of a request.
+     */
+    static final int MAX_NODE_BYTES = 1000 * 1000;
+
+    private static final int MAGIC = 0x7a6b666d; // "zkfm"
+    private static final byte FORMAT = 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    private final long version;
+    private final long[] chunkVersions; // empty if the nodes are held in the manifest node
+    private final List<Map<String, byte[]>> chunks; // nodes of each chunk, or a single one if not chunked
+
+    private FeatureSwitchManifest(long version, long[] chunkVersions, List<Map<String, byte[]>> chunks) {
+        this.version = version;
+        this.chunkVersions = chunkVersions;
+        this.chunks = chunks;
+    }
+
+    /**
+     * @return the path of the manifest node of a (normalised) namespace
+     */
+    static String path(String featureSwitchNamespace) {
+        return featureSwitchNamespace.substring(0, featureSwitchNamespace.length() - 1) + ".manifest";
+    }
+
+    /**
+     * @return an empty manifest, with a version before any built by build()
+     */
+    static FeatureSwitchManifest empty() {
+        return new FeatureSwitchManifest(0, new long[0], Collections.singletonList(Collections.<String, byte[]> emptyMap()));
+    }
+
+    /**
+     * Builds the next version of a manifest. The nodes are held in the manifest node if they fit, otherwise they are split
+     * into the same number of chunks as the previous version (or more if they no longer fit), so that only the chunks holding
+     * changed nodes have to be written and read again.
+     *
+     * @param previous
+     *            the current manifest, or null if there is none
+     * @param nodes
+     *            the value of each node with a value, by path below the namespace
+     * @return the new manifest
+     */
+    static FeatureSwitchManifest build(FeatureSwitchManifest previous, Map<String, byte[]> nodes) {
+        long newVersion = previous == null ? 1 : previous.version + 1;
+        int chunkCount = previous == null ? 0 : previous.chunkVersions.length;
+        if (chunkCount == 0 && encodedSize(nodes) <= MAX_NODE_BYTES - 32) {
+            return new FeatureSwitchManifest(newVersion, new long[0],
+                    Collections.singletonList(Collections.unmodifiableMap(new TreeMap<String, byte[]>(nodes))));
+        }
+
+        for (chunkCount = Math.max(chunkCount, 2); chunkCount <= MAX_CHUNKS; chunkCount *= 2) {
+            List<Map<String, byte[]>> newChunks = new ArrayList<Map<String, byte[]>>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                newChunks.add(new TreeMap<String, byte[]>());
+            }
+            for (Map.Entry<String, byte[]> node : nodes.entrySet()) {
+                newChunks.get(chunkOf(node.getKey(), chunkCount)).put(node.getKey(), node.getValue());
+            }
+            boolean fits = true;
+            for (Map<String, byte[]> chunk : newChunks) {
+                fits &= encodedSize(chunk) <= MAX_NODE_BYTES - 32;
+            }
+            if (!fits) {
+                continue;
+            }
+
+            long[] newChunkVersions = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                boolean unchanged =
+                        previous != null && previous.chunkVersions.length == chunkCount
+                                && sameNodes(previous.chunks.get(i), newChunks.get(i));
+                newChunkVersions[i] = unchanged ? previous.chunkVersions[i] : newVersion;
+                newChunks.set(i, Collections.unmodifiableMap(newChunks.get(i)));
+            }
+            return new FeatureSwitchManifest(newVersion, newChunkVersions, newChunks);
+        }
+        throw new IllegalStateException("Feature switch manifest is too big to split into chunks");
+    }
+
+    /**
+     * Reads a manifest, reusing the chunks of the previous read that have not changed since.
+     *
+     * @param manifestData
+     *            the data of the manifest node, already read
+     * @param previous
+     *            the manifest last read, or null
+     * @return the manifest, or null if a chunk has been removed (or replaced) by a newer version of the manifest since it was
+     *         read, in which case the manifest node has changed too, and should be read again
+     * @throws Exception
+     *             if a chunk can not be read, or the manifest is not valid (IOException)
+     */
+    static FeatureSwitchManifest read(CuratorFramework client, String path, byte[] manifestData, FeatureSwitchManifest previous)
+            throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifestData));
+        long version = readHeader(in, path);
+        int chunkCount = in.readInt();
+        if (chunkCount == 0) {
+            return new FeatureSwitchManifest(version, new long[0], Collections.singletonList(readNodes(in)));
+        }
+
+        long[] chunkVersions = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkVersions[i] = in.readLong();
+        }
+        List<Map<String, byte[]>> chunks = new ArrayList<Map<String, byte[]>>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            if (previous != null && previous.chunkVersions.length == chunkCount && previous.chunkVersions[i] == chunkVersions[i]) {
+                chunks.add(previous.chunks.get(i));
+                continue;
+            }
+            String chunkPath = path + "/" + chunkNode(i, chunkVersions[i]);
+            byte[] chunkData;
+            try {
+                chunkData = client.getData().forPath(chunkPath);
+            } catch (KeeperException.NoNodeException e) {
+                return null;
+            }
+            DataInputStream chunkIn = new DataInputStream(new ByteArrayInputStream(chunkData));
+            if (readHeader(chunkIn, chunkPath) != chunkVersions[i]) {
+                return null;
+            }
+            chunks.add(readNodes(chunkIn));
+        }
+        return new FeatureSwitchManifest(version, chunkVersions, chunks);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of chunks, or 0 if the nodes are held in the manifest node
+     */
+    int getChunkCount() {
+        return chunkVersions.length;
+    }
+
+    /**
+     * @return the name of the child node of the manifest node holding a chunk
+     */
+    String getChunkNode(int chunk) {
+        return chunkNode(chunk, chunkVersions[chunk]);
+    }
+
+    private static String chunkNode(int chunk, long chunkVersion) {
+        return chunk + "-" + chunkVersion;
+    }
+
+    /**
+     * @return true if the chunk was changed by this version of the manifest
+     */
+    boolean isChunkChanged(int chunk) {
+        return chunkVersions[chunk] == version;
+    }
+
+    /**
+     * @return the value of each node, by path below the namespace (unmodifiable)
+     */
+    Map<String, byte[]> getNodes() {
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+        Map<String, byte[]> nodes = new TreeMap<String, byte[]>();
+        for (Map<String, byte[]> chunk : chunks) {
+            nodes.putAll(chunk);
+        }
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    /**
+     * @return the data of the manifest node
+     */
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, version);
+        out.writeInt(chunkVersions.length);
+        if (chunkVersions.length == 0) {
+            writeNodes(out, chunks.get(0));
+        }
+        for (long chunkVersion : chunkVersions) {
+            out.writeLong(chunkVersion);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the data of a chunk node
+     */
+    byte[] encodeChunk(int chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out, chunkVersions[chunk]);
+        writeNodes(out, chunks.get(chunk));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the chunk holding the nodes of the feature switch of a node
+     */
+    static int chunkOf(String node, int chunkCount) {
+        int slash = node.indexOf('/');
+        String key = slash < 0 ? node : node.substring(0, slash);
+        return (key.hashCode() & 0x7fffffff) % chunkCount;
+    }
+
+    private static boolean sameNodes(Map<String, byte[]> nodes1, Map<String, byte[]> nodes2) {
+        if (nodes1.size() != nodes2.size()) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> node : nodes1.entrySet()) {
+            if (!Arrays.equals(node.getValue(), nodes2.get(node.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int encodedSize(Map<String, byte[]> nodes) {
+        int size = 4;
+        for (Map.Entry<String, byte[]> node : nodes.entrySet()) {
+            size += 2 + node.getKey().length() * 3 + 4 + node.getValue().length; // modified UTF-8 takes up to 3 bytes a char
+        }
+        return size;
+    }
+
+    private static void writeHeader(DataOutputStream out, long version) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT);
+        out.writeLong(version);
+    }
+
+    private static long readHeader(DataInputStream in, String path) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != FORMAT) {
+            throw new IOException("Not a zkfss manifest node: " + path);
+        }
+        return in.readLong();
+    }
+
+    private static void writeNodes(DataOutputStream out, Map<String, byte[]> nodes) throws IOException {
+        out.writeInt(nodes.size());
+        for (Map.Entry<String, byte[]> node : nodes.entrySet()) {
+            out.writeUTF(node.getKey());
+            out.writeInt(node.getValue().length);
+            out.write(node.getValue());
+        }
+    }
+
+    private static Map<String, byte[]> readNodes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, byte[]> nodes = new TreeMap<String, byte[]>();
+        for (int i = 0; i < count; i++) {
+            String node = in.readUTF();
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            nodes.put(node, value);
+        }
+        return Collections.unmodifiableMap(nodes);
+    }
+}
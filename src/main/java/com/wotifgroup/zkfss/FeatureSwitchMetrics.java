@@ -0,0 +1,222 @@
+package com.wotifgroup.zkfss;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Metrics of a ZKFeatureSwitchService. Counters are striped (LongAdder) so that lookups on many threads do not contend on
+ * them.
+ * 
+ * @author lazjen
+ *
+ */
+public class FeatureSwitchMetrics implements FeatureSwitchMetricsMXBean {
+
+    private static final String DEFAULT_LEVEL_NAME = "default";
+
+    private final String[] levelNames;
+    private final LongAdder[] levelLookups;
+    private final LongAdder lookupMisses = new LongAdder();
+    private final ConcurrentMap<String, KeyMetrics> keyMetrics = new ConcurrentHashMap<String, KeyMetrics>();
+
+    private final AtomicInteger watchCount = new AtomicInteger();
+    private final LongAdder watchSetups = new LongAdder();
+    private final LongAdder watchSetupNanos = new LongAdder();
+    private final AtomicLong maxWatchSetupNanos = new AtomicLong();
+
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder updateLags = new LongAdder();
+    private final LongAdder updateLagMillis = new LongAdder();
+    private final AtomicLong maxUpdateLagMillis = new AtomicLong();
+    private volatile long lastUpdateLagMillis;
+
+    /**
+     * @param levelNames
+     *            names of the override levels in precedence order, not including the default
+     */
+    FeatureSwitchMetrics(String[] levelNames) {
+        this.levelNames = new String[levelNames.length + 1];
+        System.arraycopy(levelNames, 0, this.levelNames, 0, levelNames.length);
+        this.levelNames[levelNames.length] = DEFAULT_LEVEL_NAME;
+        levelLookups = new LongAdder[this.levelNames.length];
+        for (int i = 0; i < levelLookups.length; i++) {
+            levelLookups[i] = new LongAdder();
+        }
+    }
+
+    void recordLookupMiss() {
+        lookupMisses.increment();
+    }
+
+    /**
+     * @param level
+     *            index of the override level answering the feature switch, or the number of override levels for the default
+     */
+    void setResolvedLevel(String key, int level) {
+        keyMetrics(key).level = level;
+    }
+
+    void removeKey(String key) {
+        keyMetrics.remove(key);
+    }
+
+    /**
+     * @return the metrics of a feature switch, for its entry in the lookup table to record lookups on directly
+     */
+    KeyMetrics keyMetrics(String key) {
+        KeyMetrics metrics = keyMetrics.get(key);
+        if (metrics == null) {
+            KeyMetrics newMetrics = new KeyMetrics(levelNames.length - 1);
+            metrics = keyMetrics.putIfAbsent(key, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    void watchAdded() {
+        watchCount.incrementAndGet();
+    }
+
+    void watchRemoved() {
+        watchCount.decrementAndGet();
+    }
+
+    void recordWatchSetup(long nanos) {
+        watchSetups.increment();
+        watchSetupNanos.add(nanos);
+        updateMax(maxWatchSetupNanos, nanos);
+    }
+
+    /**
+     * Records the lag of a node change from its modification time. This relies on the clocks of the Zookeeper servers and
+     * this host being in sync.
+     */
+    void recordUpdate(Stat stat) {
+        recordUpdate(stat == null ? 0 : stat.getMtime());
+    }
+
+    /**
+     * @param modifiedMillis
+     *            when the node was changed, or 0 if unknown
+     */
+    void recordUpdate(long modifiedMillis) {
+        updates.increment();
+        if (modifiedMillis > 0) {
+            long lag = Math.max(0, System.currentTimeMillis() - modifiedMillis);
+            lastUpdateLagMillis = lag;
+            updateLags.increment();
+            updateLagMillis.add(lag);
+            updateMax(maxUpdateLagMillis, lag);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getLookupCount() {
+        long count = 0;
+        for (LongAdder lookups : levelLookups) {
+            count += lookups.sum();
+        }
+        return count;
+    }
+
+    public long getLookupMissCount() {
+        return lookupMisses.sum();
+    }
+
+    public Map<String, Long> getLookupCountsByLevel() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < levelNames.length; i++) {
+            counts.put(levelNames[i], levelLookups[i].sum());
+        }
+        return counts;
+    }
+
+    public Map<String, Long> getLookupCountsByKey() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, KeyMetrics> metrics : keyMetrics.entrySet()) {
+            counts.put(metrics.getKey(), metrics.getValue().lookups.sum());
+        }
+        return counts;
+    }
+
+    public Map<String, String> getResolvedLevelsByKey() {
+        Map<String, String> levels = new TreeMap<String, String>();
+        for (Map.Entry<String, KeyMetrics> metrics : keyMetrics.entrySet()) {
+            levels.put(metrics.getKey(), levelNames[metrics.getValue().level]);
+        }
+        return levels;
+    }
+
+    public int getWatchCount() {
+        return watchCount.get();
+    }
+
+    public long getWatchSetupCount() {
+        return watchSetups.sum();
+    }
+
+    public double getWatchSetupMeanMillis() {
+        long count = watchSetups.sum();
+        return count == 0 ? 0 : toMillis(watchSetupNanos.sum()) / count;
+    }
+
+    public double getWatchSetupMaxMillis() {
+        return toMillis(maxWatchSetupNanos.get());
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    public long getLastUpdateLagMillis() {
+        return lastUpdateLagMillis;
+    }
+
+    public double getUpdateLagMeanMillis() {
+        long count = updateLags.sum();
+        return count == 0 ? 0 : (double) updateLagMillis.sum() / count;
+    }
+
+    public long getUpdateLagMaxMillis() {
+        return maxUpdateLagMillis.get();
+    }
+
+    /**
+     * The metrics of one feature switch.
+     */
+    final class KeyMetrics {
+
+        private final LongAdder lookups = new LongAdder();
+        private volatile int level;
+
+        private KeyMetrics(int level) {
+            this.level = level;
+        }
+
+        void recordLookup() {
+            lookups.increment();
+            levelLookups[level].increment();
+        }
+    }
+}
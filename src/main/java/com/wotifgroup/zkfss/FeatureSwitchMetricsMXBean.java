@@ -0,0 +1,77 @@
+package com.wotifgroup.zkfss;
+
+import java.util.Map;
+
+/**
+ * JMX view of FeatureSwitchMetrics.
+ * 
+ * @author lazjen
+ *
+ */
+public interface FeatureSwitchMetricsMXBean {
+
+    /**
+     * @return number of isEnabled() lookups (bound feature switches are not counted)
+     */
+    long getLookupCount();
+
+    /**
+     * @return number of lookups of feature switches that were not yet known to the service
+     */
+    long getLookupMissCount();
+
+    /**
+     * @return number of lookups by the override level that answered them ("default" when no node is set)
+     */
+    Map<String, Long> getLookupCountsByLevel();
+
+    /**
+     * @return number of lookups by feature switch key
+     */
+    Map<String, Long> getLookupCountsByKey();
+
+    /**
+     * @return the override level currently answering each feature switch
+     */
+    Map<String, String> getResolvedLevelsByKey();
+
+    /**
+     * @return number of watches on Zookeeper nodes held by the service
+     */
+    int getWatchCount();
+
+    /**
+     * @return number of first time lookups that set up watches while the caller waited
+     */
+    long getWatchSetupCount();
+
+    /**
+     * @return mean time (in millis) callers waited for watches to be set up
+     */
+    double getWatchSetupMeanMillis();
+
+    /**
+     * @return maximum time (in millis) a caller waited for watches to be set up
+     */
+    double getWatchSetupMaxMillis();
+
+    /**
+     * @return number of node changes applied
+     */
+    long getUpdateCount();
+
+    /**
+     * @return time (in millis) between the last node change applied and its modification time in Zookeeper
+     */
+    long getLastUpdateLagMillis();
+
+    /**
+     * @return mean time (in millis) between node changes and their modification time in Zookeeper
+     */
+    double getUpdateLagMeanMillis();
+
+    /**
+     * @return maximum time (in millis) between a node change and its modification time in Zookeeper
+     */
+    long getUpdateLagMaxMillis();
+}
@@ -0,0 +1,18 @@
+package com.wotifgroup.zkfss;
+
+/**
+ * Reporter of feature switch metrics, called periodically by ZKFeatureSwitchService (see setMetricsReporter()).
+ * 
+ * @author lazjen
+ *
+ */
+public interface FeatureSwitchMetricsReporter {
+
+    /**
+     * Report the current metrics.
+     * 
+     * @param metrics
+     *            the service's metrics
+     */
+    void report(FeatureSwitchMetrics metrics);
+}
@@ -0,0 +1,266 @@
+package com.wotifgroup.zkfss;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The compiled value of a feature switch node: either a plain boolean (TRUE or FALSE) or a rollout rule evaluated against a
+ * context id (e.g. a user, session or tenant id). Rules are parsed once when the node changes, so evaluating one costs a
+ * couple of set lookups and a hash of the context id, without allocating.
+ * <p>
+ * A rule is a list of clauses separated by ";", e.g. "percent=25;deny=bob" or "allow=alice,bob;buckets=0-99,5000-5099":
+ * <ul>
+ * <li>allow=id,... - always enabled for these ids</li>
+ * <li>deny=id,... - never enabled for these ids (takes precedence over allow)</li>
+ * <li>percent=N - enabled for N percent of ids (up to two decimal places)</li>
+ * <li>buckets=from-to,... - enabled for ids hashed into these buckets (0 - 9999), i.e. a fixed cohort</li>
+ * <li>seed=S - seed for hashing ids into buckets. Defaults to the feature switch key, so each feature switch rolls out to
+ * different ids; feature switches with the same seed roll out to the same ids.</li>
+ * </ul>
+ * Without a context id, a rule is not enabled. A value only counts as a rule if it starts with one of these clauses, so other
+ * values holding "=" (e.g. typed string values) are not mistaken for invalid rules.
+ *
+ * @author lazjen
+ *
+ */
+final class FeatureSwitchRule {
+
+    static final int BUCKETS = 10000;
+
+    private static final Set<String> CLAUSES =
+            Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("allow", "deny", "percent", "buckets", "seed")));
+
+    static final FeatureSwitchRule TRUE = new FeatureSwitchRule("true", true);
+    static final FeatureSwitchRule FALSE = new FeatureSwitchRule("false", false);
+
+    private final String source;
+    private final boolean constant;
+    private final boolean value;
+    private final Set<String> allow;
+    private final Set<String> deny;
+    private final int percentBuckets;
+    private final int[] bucketRanges;
+    private final int seed;
+
+    private FeatureSwitchRule(String source, boolean value) {
+        this.source = source;
+        this.constant = true;
+        this.value = value;
+        this.allow = Collections.emptySet();
+        this.deny = Collections.emptySet();
+        this.percentBuckets = 0;
+        this.bucketRanges = new int[0];
+        this.seed = 0;
+    }
+
+    private FeatureSwitchRule(String source, Set<String> allow, Set<String> deny, int percentBuckets, int[] bucketRanges, int seed) {
+        this.source = source;
+        this.constant = false;
+        this.value = false;
+        this.allow = allow;
+        this.deny = deny;
+        this.percentBuckets = percentBuckets;
+        this.bucketRanges = bucketRanges;
+        this.seed = seed;
+    }
+
+    /**
+     * Parses the value of a feature switch node: "true" or "1", "false" or "0", or a rule.
+     *
+     * @param value
+     *            the node value
+     * @param defaultSeed
+     *            seed for hashing ids if the rule does not set one
+     * @return the compiled value, or null if the value is not set, or is neither a boolean nor a rule
+     * @throws IllegalArgumentException
+     *             if the value starts like a rule, but is not a valid one
+     */
+    static FeatureSwitchRule parse(String value, String defaultSeed) {
+        if (value == null) {
+            return null;
+        }
+        if ("true".equalsIgnoreCase(value) || "1".equals(value)) {
+            return TRUE;
+        } else if ("false".equalsIgnoreCase(value) || "0".equals(value)) {
+            return FALSE;
+        } else if (!isRule(value)) {
+            return null;
+        }
+
+        Set<String> allow = Collections.emptySet();
+        Set<String> deny = Collections.emptySet();
+        int percentBuckets = 0;
+        List<Integer> bucketRanges = new ArrayList<Integer>();
+        String seed = defaultSeed;
+        for (String clause : value.split(";")) {
+            clause = clause.trim();
+            if (clause.isEmpty()) {
+                continue;
+            }
+            int separator = clause.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid rule clause: " + clause);
+            }
+            String name = clause.substring(0, separator).trim();
+            String argument = clause.substring(separator + 1).trim();
+            if ("allow".equals(name)) {
+                allow = parseIds(argument);
+            } else if ("deny".equals(name)) {
+                deny = parseIds(argument);
+            } else if ("percent".equals(name)) {
+                double percent = Double.parseDouble(argument);
+                if (percent < 0 || percent > 100) {
+                    throw new IllegalArgumentException("Invalid percentage: " + argument);
+                }
+                percentBuckets = (int) Math.round(percent * BUCKETS / 100);
+            } else if ("buckets".equals(name)) {
+                for (String range : argument.split(",")) {
+                    String[] bounds = range.trim().split("-");
+                    int from = Integer.parseInt(bounds[0].trim());
+                    int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+                    if (bounds.length > 2 || from < 0 || to < from || to >= BUCKETS) {
+                        throw new IllegalArgumentException("Invalid bucket range: " + range);
+                    }
+                    bucketRanges.add(from);
+                    bucketRanges.add(to);
+                }
+            } else if ("seed".equals(name)) {
+                seed = argument;
+            } else {
+                throw new IllegalArgumentException("Unknown rule clause: " + name);
+            }
+        }
+        int[] ranges = new int[bucketRanges.size()];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = bucketRanges.get(i);
+        }
+        return new FeatureSwitchRule(value, allow, deny, percentBuckets, ranges, hash(seed == null ? "" : seed, 0));
+    }
+
+    /**
+     * @return true if the first clause of a value is a rule clause
+     */
+    private static boolean isRule(String value) {
+        int separator = value.indexOf('=');
+        if (separator < 0) {
+            return false;
+        }
+        int clauseEnd = value.indexOf(';');
+        if (clauseEnd >= 0 && clauseEnd < separator) {
+            return false;
+        }
+        return CLAUSES.contains(value.substring(0, separator).trim());
+    }
+
+    private static Set<String> parseIds(String argument) {
+        Set<String> ids = new HashSet<String>();
+        for (String id : argument.split(",")) {
+            id = id.trim();
+            if (!id.isEmpty()) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return true if this is a plain boolean rather than a rule
+     */
+    boolean isConstant() {
+        return constant;
+    }
+
+    /**
+     * @return the value without a context, i.e. the plain boolean, or false for a rule
+     */
+    boolean getValue() {
+        return value;
+    }
+
+    /**
+     * @param contextId
+     *            the context id, or null
+     * @return whether the feature switch is enabled for the context id
+     */
+    boolean isEnabled(String contextId) {
+        if (constant || contextId == null) {
+            return value;
+        }
+        if (deny.contains(contextId)) {
+            return false;
+        }
+        if (allow.contains(contextId)) {
+            return true;
+        }
+        int bucket = bucket(contextId);
+        if (bucket < percentBuckets) {
+            return true;
+        }
+        for (int i = 0; i < bucketRanges.length; i += 2) {
+            if (bucket >= bucketRanges[i] && bucket <= bucketRanges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the bucket (0 - 9999) the context id is hashed into
+     */
+    int bucket(String contextId) {
+        return (hash(contextId, seed) & Integer.MAX_VALUE) % BUCKETS;
+    }
+
+    /**
+     * 32 bit MurmurHash3 of the chars of a string, read straight from the string so nothing is allocated.
+     */
+    private static int hash(String s, int seed) {
+        int h = seed;
+        int length = s.length();
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            h = mix(h, s.charAt(i) | (s.charAt(i + 1) << 16));
+        }
+        if (i < length) {
+            int k = s.charAt(i) * 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15) * 0x1b873593;
+            h ^= k;
+        }
+        h ^= length * 2;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mix(int h, int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        k *= 0x1b873593;
+        h ^= k;
+        h = Integer.rotateLeft(h, 13);
+        return h * 5 + 0xe6546b64;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FeatureSwitchRule && ((FeatureSwitchRule) o).source.equals(source)
+                && ((FeatureSwitchRule) o).seed == seed;
+    }
+
+    @Override
+    public int hashCode() {
+        return source.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -1,5 +1,10 @@
 package com.wotifgroup.zkfss;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Feature switch service interface for zkfss (https://github.com/lazjen/zkfss)
  * 
@@ -21,4 +26,118 @@ public interface FeatureSwitchService {
      * @return true if the feature is enabled.
      */
     boolean isEnabled(String key);
+
+    /**
+     * Returns the value of the feature switch based on the key supplied, or a default if the feature switch has not been
+     * loaded (e.g. on its first lookup, if the service does not wait on the lookup for it to be loaded). The default
+     * implementation always looks the feature switch up with isEnabled(key).
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @param defaultValue value to return if the feature switch has not been loaded
+     * @return true if the feature is enabled.
+     */
+    default boolean isEnabled(String key, boolean defaultValue) {
+        return isEnabled(key);
+    }
+
+    /**
+     * Returns the value of the feature switch once it has been loaded, without blocking the calling thread. The default
+     * implementation looks the feature switch up with isEnabled(key) on the calling thread.
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @return a future completed with true if the feature is enabled.
+     */
+    default CompletableFuture<Boolean> isEnabledAsync(String key) {
+        return CompletableFuture.completedFuture(isEnabled(key));
+    }
+
+    /**
+     * Returns the value of the feature switch for a context, e.g. a user, session or tenant id. A feature switch node may hold
+     * a rollout rule rather than a boolean (see the README.md), in which case the rule decides whether the feature is
+     * enabled for the context. For a boolean feature switch this is the same as isEnabled(key), which is what the default
+     * implementation returns for every feature switch.
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @param contextId the context id, or null (a rollout rule is not enabled without a context)
+     * @return true if the feature is enabled for the context.
+     */
+    default boolean isEnabled(String key, String contextId) {
+        return isEnabled(key);
+    }
+
+    /**
+     * Binds a feature switch key, returning a handle that is kept up to date with the value of the feature switch. Use this
+     * for feature switches checked on hot code paths. The default implementation returns a handle that looks the feature
+     * switch up on this service on every check.
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @return the bound feature switch
+     */
+    default FeatureSwitch bind(final String key) {
+        final FeatureSwitchService service = this;
+        return new FeatureSwitch() {
+
+            public String getKey() {
+                return key;
+            }
+
+            public boolean isEnabled() {
+                return service.isEnabled(key);
+            }
+
+            public boolean isEnabled(String contextId) {
+                return service.isEnabled(key, contextId);
+            }
+        };
+    }
+
+    /**
+     * Returns a view of the feature switch values for checking several feature switches consistently (see
+     * FeatureSwitchSnapshot). The default implementation looks each feature switch up with isEnabled(key) the first time it
+     * is checked through the view, and keeps that value for the life of the view. Its version is always 0, and values for a
+     * context are looked up with isEnabled(key, contextId) on every check.
+     * 
+     * @return the snapshot
+     */
+    default FeatureSwitchSnapshot snapshot() {
+        final FeatureSwitchService service = this;
+        return new FeatureSwitchSnapshot() {
+
+            private final Map<String, Boolean> values = new ConcurrentHashMap<String, Boolean>();
+
+            public long getVersion() {
+                return 0;
+            }
+
+            public boolean isEnabled(String key) {
+                Boolean value = values.get(key);
+                if (value == null) {
+                    value = service.isEnabled(key);
+                    Boolean previousValue = values.putIfAbsent(key, value);
+                    if (previousValue != null) {
+                        value = previousValue;
+                    }
+                }
+                return value;
+            }
+
+            public boolean isEnabled(String key, String contextId) {
+                return service.isEnabled(key, contextId);
+            }
+
+            public Map<String, Boolean> getValues() {
+                return Collections.unmodifiableMap(values);
+            }
+        };
+    }
+
+    /**
+     * Binds every feature switch declared by an enum, using the name of each enum constant as the key.
+     * 
+     * @param switches enum declaring the feature switches
+     * @return the bound feature switches
+     */
+    default <E extends Enum<E>> FeatureSwitchSet<E> bind(Class<E> switches) {
+        return new FeatureSwitchSet<E>(switches, this);
+    }
 }
@@ -0,0 +1,60 @@
+package com.wotifgroup.zkfss;
+
+/**
+ * The feature switches declared by an enum, bound using the name of each enum constant as the feature switch key. Lookups are
+ * by the constant's ordinal, so no key is hashed or compared.
+ * 
+ * @author lazjen
+ *
+ * @param <E>
+ *            enum declaring the feature switches
+ */
+public final class FeatureSwitchSet<E extends Enum<E>> {
+
+    private final FeatureSwitch[] featureSwitches;
+
+    /**
+     * Binds every feature switch declared by an enum.
+     * 
+     * @param switches
+     *            enum declaring the feature switches
+     * @param service
+     *            service to bind the feature switches with
+     */
+    public FeatureSwitchSet(Class<E> switches, FeatureSwitchService service) {
+        E[] constants = switches.getEnumConstants();
+        featureSwitches = new FeatureSwitch[constants.length];
+        for (E constant : constants) {
+            featureSwitches[constant.ordinal()] = service.bind(constant.name());
+        }
+    }
+
+    /**
+     * @param featureSwitch
+     *            the feature switch
+     * @return the bound feature switch
+     */
+    public FeatureSwitch get(E featureSwitch) {
+        return featureSwitches[featureSwitch.ordinal()];
+    }
+
+    /**
+     * @param featureSwitch
+     *            the feature switch
+     * @return true if the feature is enabled.
+     */
+    public boolean isEnabled(E featureSwitch) {
+        return featureSwitches[featureSwitch.ordinal()].isEnabled();
+    }
+
+    /**
+     * @param featureSwitch
+     *            the feature switch
+     * @param contextId
+     *            the context id, or null
+     * @return true if the feature is enabled for the context.
+     */
+    public boolean isEnabled(E featureSwitch, String contextId) {
+        return featureSwitches[featureSwitch.ordinal()].isEnabled(contextId);
+    }
+}
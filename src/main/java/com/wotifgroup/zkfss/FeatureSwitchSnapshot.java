@@ -0,0 +1,45 @@
+package com.wotifgroup.zkfss;
+
+import java.util.Map;
+
+/**
+ * An immutable view of the feature switch values at one point in time, returned by FeatureSwitchService.snapshot(). Checking
+ * several feature switches against the same snapshot (e.g. for the duration of a request) gives a consistent combination of
+ * values, even if some of them change in the meantime.
+ * 
+ * @author lazjen
+ *
+ */
+public interface FeatureSwitchSnapshot {
+
+    /**
+     * @return the version of the feature switch values this is a view of. A later snapshot with the same version has the same
+     *         values; a higher version means something changed.
+     */
+    long getVersion();
+
+    /**
+     * Returns the value of the feature switch when the snapshot was taken. A feature switch that was not yet known to the
+     * service at that time has the service's default for unknown feature switches (false unless set otherwise), without
+     * waiting for it to be loaded; the service loads it in the background, so later snapshots have its value.
+     * 
+     * @param key Feature switch key value (see FeatureSwitchService.isEnabled() for the rules).
+     * @return true if the feature is enabled.
+     */
+    boolean isEnabled(String key);
+
+    /**
+     * Returns the value of the feature switch for a context when the snapshot was taken (see
+     * FeatureSwitchService.isEnabled(key, contextId)).
+     * 
+     * @param key Feature switch key value (see FeatureSwitchService.isEnabled() for the rules).
+     * @param contextId the context id, or null
+     * @return true if the feature is enabled for the context.
+     */
+    boolean isEnabled(String key, String contextId);
+
+    /**
+     * @return the values of all feature switches known to the service when the snapshot was taken (unmodifiable)
+     */
+    Map<String, Boolean> getValues();
+}
@@ -0,0 +1,132 @@
+package com.wotifgroup.zkfss;
+
+/**
+ * The value of a feature switch node as a string and, where it parses as one, as a number. The number is parsed once when the
+ * node changes, so typed lookups never parse or box.
+ * <p>
+ * A resolved value combines the nodes of a feature switch in override precedence order for each type separately: the string
+ * comes from the first node with a value, the number from the first node whose value is a number. This mirrors the boolean
+ * resolution, where a node with an invalid value is ignored.
+ *
+ * @author lazjen
+ *
+ */
+final class FeatureSwitchValue {
+
+    static final FeatureSwitchValue NONE = new FeatureSwitchValue(null, false, 0, false, 0);
+
+    private final String string;
+    private final boolean hasLong;
+    private final long longValue;
+    private final boolean hasDouble;
+    private final double doubleValue;
+
+    private FeatureSwitchValue(String string, boolean hasLong, long longValue, boolean hasDouble, double doubleValue) {
+        this.string = string;
+        this.hasLong = hasLong;
+        this.longValue = longValue;
+        this.hasDouble = hasDouble;
+        this.doubleValue = doubleValue;
+    }
+
+    /**
+     * @param string
+     *            the node value
+     * @return the value, parsed as a number where possible
+     */
+    static FeatureSwitchValue parse(String string) {
+        if (string == null) {
+            return NONE;
+        }
+        String trimmed = string.trim();
+        boolean hasLong = false;
+        long longValue = 0;
+        try {
+            longValue = Long.parseLong(trimmed);
+            hasLong = true;
+        } catch (NumberFormatException e) {
+            // not an integer
+        }
+        boolean hasDouble = false;
+        double doubleValue = 0;
+        try {
+            doubleValue = Double.parseDouble(trimmed);
+            hasDouble = !Double.isNaN(doubleValue);
+        } catch (NumberFormatException e) {
+            // not a number
+        }
+        return new FeatureSwitchValue(string, hasLong, longValue, hasDouble, doubleValue);
+    }
+
+    /**
+     * Combines the values of the nodes of a feature switch.
+     *
+     * @param values
+     *            node values in override precedence order, null where a node has no value
+     * @return the resolved value
+     */
+    static FeatureSwitchValue resolve(FeatureSwitchValue[] values) {
+        FeatureSwitchValue stringValue = null;
+        FeatureSwitchValue longValue = null;
+        FeatureSwitchValue doubleValue = null;
+        for (FeatureSwitchValue value : values) {
+            if (value == null || value.string == null) {
+                continue;
+            }
+            if (stringValue == null) {
+                stringValue = value;
+            }
+            if (longValue == null && value.hasLong) {
+                longValue = value;
+            }
+            if (doubleValue == null && value.hasDouble) {
+                doubleValue = value;
+            }
+        }
+        if (stringValue == null) {
+            return NONE;
+        }
+        if ((longValue == null || longValue == stringValue) && (doubleValue == null || doubleValue == stringValue)) {
+            return stringValue; // the usual case - a single node decides
+        }
+        return new FeatureSwitchValue(stringValue.string, longValue != null, longValue == null ? 0 : longValue.longValue,
+                doubleValue != null, doubleValue == null ? 0 : doubleValue.doubleValue);
+    }
+
+    String getString(String defaultValue) {
+        return string == null ? defaultValue : string;
+    }
+
+    int getInt(int defaultValue) {
+        return hasLong && longValue == (int) longValue ? (int) longValue : defaultValue;
+    }
+
+    long getLong(long defaultValue) {
+        return hasLong ? longValue : defaultValue;
+    }
+
+    double getDouble(double defaultValue) {
+        return hasDouble ? doubleValue : defaultValue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FeatureSwitchValue)) {
+            return false;
+        }
+        FeatureSwitchValue other = (FeatureSwitchValue) o;
+        return (string == null ? other.string == null : string.equals(other.string)) && hasLong == other.hasLong
+                && longValue == other.longValue && hasDouble == other.hasDouble
+                && Double.doubleToLongBits(doubleValue) == Double.doubleToLongBits(other.doubleValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return string == null ? 0 : string.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return string;
+    }
+}
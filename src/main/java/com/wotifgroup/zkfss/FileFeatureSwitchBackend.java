@@ -0,0 +1,176 @@
+package com.wotifgroup.zkfss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A backend reading the node values from a local properties file (UTF-8), reloaded whenever the file changes, for services
+ * that can not reach Zookeeper. Each property is a node, named by its path below the feature switch namespace:
+ *
+ * <pre>
+ * X=true
+ * X/myApp=false
+ * Y=percent=10
+ * </pre>
+ *
+ * The file's directory is watched with a WatchService. If the file is missing every node is unset; if it can not be read the
+ * last values are kept. The backend can be shared by several services; it watches the file while any of them is running.
+ *
+ * @author lazjen
+ *
+ */
+public class FileFeatureSwitchBackend implements FeatureSwitchBackend {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileFeatureSwitchBackend.class);
+
+    private final File file;
+    private final InMemoryFeatureSwitchBackend values = new InMemoryFeatureSwitchBackend();
+    private Map<String, String> loadedValues = new HashMap<String, String>(); // guarded by this backend
+    private int services = 0; // guarded by this backend
+    private WatchService watchService;
+
+    /**
+     * @param file
+     *            the properties file
+     */
+    public FileFeatureSwitchBackend(File file) {
+        this.file = file.getAbsoluteFile();
+    }
+
+    public void start() throws IOException {
+        Map<String, List<Listener>> changes;
+        synchronized (this) {
+            if (services++ > 0) {
+                return;
+            }
+            changes = readChanges();
+            watchService = FileSystems.getDefault().newWatchService();
+            file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            final WatchService startedWatchService = watchService;
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    watchFile(startedWatchService);
+                }
+            }, "zkfss-file");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyListeners(changes);
+    }
+
+    private void watchFile(WatchService watchService) {
+        Path fileName = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the file and applies the nodes that changed since it was last read. The listeners are notified after the lock is
+     * released, as they may start or close a service sharing this backend.
+     */
+    void reload() {
+        Map<String, List<Listener>> changes;
+        synchronized (this) {
+            changes = readChanges();
+        }
+        notifyListeners(changes);
+    }
+
+    /**
+     * Reads the file and stores the nodes that changed since it was last read, without notifying their listeners. Must be
+     * called holding the lock.
+     *
+     * @return the listeners to notify of each changed node
+     */
+    private Map<String, List<Listener>> readChanges() {
+        Map<String, List<Listener>> changes = new HashMap<String, List<Listener>>();
+        Map<String, String> newValues = new HashMap<String, String>();
+        if (file.exists()) {
+            Properties properties = new Properties();
+            try {
+                Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+                try {
+                    properties.load(reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to read feature switch file " + file + ", keeping the last values", e);
+                return changes;
+            }
+            for (String node : properties.stringPropertyNames()) {
+                newValues.put(node, properties.getProperty(node));
+            }
+        }
+
+        Set<String> nodes = new HashSet<String>(loadedValues.keySet());
+        nodes.addAll(newValues.keySet());
+        for (String node : nodes) {
+            String value = newValues.get(node);
+            if (value == null || !value.equals(loadedValues.get(node))) {
+                changes.put(node, values.store(node, value == null ? null : value.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        loadedValues = newValues;
+        return changes;
+    }
+
+    private void notifyListeners(Map<String, List<Listener>> changes) {
+        for (Map.Entry<String, List<Listener>> change : changes.entrySet()) {
+            values.notifyListeners(change.getKey(), change.getValue());
+        }
+    }
+
+    public Watch watch(String node, Listener listener) {
+        return values.watch(node, listener);
+    }
+
+    public synchronized void close() {
+        if (--services > 0) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to stop watching feature switch file " + file, e);
+        }
+        watchService = null;
+    }
+}
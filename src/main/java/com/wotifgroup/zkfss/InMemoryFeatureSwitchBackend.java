@@ -0,0 +1,130 @@
+package com.wotifgroup.zkfss;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A backend holding the node values in memory, for tests and benchmarks of code using feature switches, without a Zookeeper
+ * server. Changes are applied to the services using the backend before set() or remove() returns.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * InMemoryFeatureSwitchBackend backend = new InMemoryFeatureSwitchBackend().set(&quot;X&quot;, &quot;true&quot;);
+ * ZKFeatureSwitchService service = new ZKFeatureSwitchService().setBackend(backend).setApplicationName(&quot;myApp&quot;).start();
+ * backend.set(&quot;X/myApp&quot;, &quot;false&quot;);
+ * </pre>
+ *
+ * @author lazjen
+ *
+ */
+public class InMemoryFeatureSwitchBackend implements FeatureSwitchBackend {
+
+    private final Map<String, byte[]> values = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Listeners of each node, guarded by this backend.
+     */
+    private final Map<String, List<Listener>> listeners = new HashMap<String, List<Listener>>();
+
+    /**
+     * Set the value of a node.
+     *
+     * @param node
+     *            path of the node below the feature switch namespace, e.g. "X" or "X/myApp"
+     * @param value
+     *            the new value
+     * @return this backend
+     */
+    public InMemoryFeatureSwitchBackend set(String node, String value) {
+        return change(node, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Remove a node.
+     *
+     * @param node
+     *            path of the node below the feature switch namespace, e.g. "X" or "X/myApp"
+     * @return this backend
+     */
+    public InMemoryFeatureSwitchBackend remove(String node) {
+        return change(node, null);
+    }
+
+    private InMemoryFeatureSwitchBackend change(String node, byte[] data) {
+        notifyListeners(node, store(node, data));
+        return this;
+    }
+
+    /**
+     * Sets or removes the value of a node, without notifying its listeners.
+     *
+     * @return a copy of the node's listeners to notify, or null if it has none
+     */
+    synchronized List<Listener> store(String node, byte[] data) {
+        if (data == null) {
+            values.remove(node);
+        } else {
+            values.put(node, data);
+        }
+        List<Listener> nodeListeners = listeners.get(node);
+        return nodeListeners == null ? null : new ArrayList<Listener>(nodeListeners);
+    }
+
+    /**
+     * Notifies the listeners of a node returned by store(). Called outside the lock, which the listeners' service may hold
+     * while watching a node. Each listener is given the latest value, so concurrent changes of a node can not leave a service
+     * with an older one.
+     */
+    void notifyListeners(String node, List<Listener> nodeListeners) {
+        if (nodeListeners == null) {
+            return;
+        }
+        long modifiedMillis = System.currentTimeMillis();
+        for (Listener listener : nodeListeners) {
+            listener.nodeChanged(values.get(node), modifiedMillis);
+        }
+    }
+
+    public void start() {
+    }
+
+    public synchronized Watch watch(final String node, final Listener listener) {
+        List<Listener> nodeListeners = listeners.get(node);
+        if (nodeListeners == null) {
+            nodeListeners = new ArrayList<Listener>();
+            listeners.put(node, nodeListeners);
+        }
+        nodeListeners.add(listener);
+        return new Watch() {
+
+            public byte[] getData() {
+                return values.get(node);
+            }
+
+            public void refresh(Runnable onComplete) {
+                onComplete.run(); // nothing can be missed
+            }
+
+            public void close() {
+                synchronized (InMemoryFeatureSwitchBackend.this) {
+                    List<Listener> nodeListeners = listeners.get(node);
+                    if (nodeListeners != null && nodeListeners.remove(listener) && nodeListeners.isEmpty()) {
+                        listeners.remove(node);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Nothing to release: the service has closed its watches, and the values are kept for other services using the backend
+     * (or the same service started again).
+     */
+    public void close() {
+    }
+}
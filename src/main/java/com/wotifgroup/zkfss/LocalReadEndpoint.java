@@ -0,0 +1,176 @@
+package com.wotifgroup.zkfss;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the endpoint a service reads from: a preferred local read endpoint (e.g. a Zookeeper observer in the same data
+ * centre) while it is healthy, and the authoritative ensemble otherwise. check() compares the last zxid of the local endpoint
+ * with the latest of the ensemble (read with the "srvr" four letter word): the local endpoint is unhealthy if it can not be
+ * reached or lags by more than the maximum number of transactions. A few checks in a row decide a switch, so that a single
+ * slow check does not move the service (and its watches) back and forth.
+ * <p>
+ * The service reads the local endpoint through a CuratorFramework of its own, created on every switch to it, and the ensemble
+ * through its main CuratorFramework (see ZKFeatureSwitchService.checkLocalRead()).
+ *
+ * @author lazjen
+ *
+ */
+final class LocalReadEndpoint {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalReadEndpoint.class);
+    private static final int FAILOVER_CHECKS = 2;
+    private static final int FAILBACK_CHECKS = 3;
+
+    private final String ensembleConnectString;
+    private final String localConnectString;
+    private final long maxLag;
+    private final int timeoutMillis;
+
+    private volatile boolean useLocal = true;
+    private int checksAgainst = 0; // consecutive checks disagreeing with the endpoint in use - only used by check()
+
+    /**
+     * @param maxLag
+     *            the largest number of transactions the local endpoint may be behind the ensemble
+     * @param timeoutMillis
+     *            timeout of reading the zxid of a server
+     */
+    LocalReadEndpoint(String ensembleConnectString, String localConnectString, long maxLag, int timeoutMillis) {
+        this.ensembleConnectString = ensembleConnectString;
+        this.localConnectString = localConnectString;
+        this.maxLag = maxLag;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts on the local endpoint only if it is healthy.
+     */
+    void start() {
+        useLocal = isLocalHealthy();
+        if (!useLocal) {
+            LOG.warn("Reading feature switches from " + ensembleConnectString + " until " + localConnectString + " catches up");
+        }
+    }
+
+    /**
+     * @return the connection string of the endpoint to read from
+     */
+    String getConnectionString() {
+        return useLocal ? localConnectString : ensembleConnectString;
+    }
+
+    /**
+     * @return true if connecting to the local endpoint
+     */
+    boolean isUsingLocal() {
+        return useLocal;
+    }
+
+    /**
+     * Checks the health of the local endpoint, switching to or from it after enough checks in a row say so. Must not be called
+     * concurrently.
+     */
+    void check() {
+        boolean healthy = isLocalHealthy();
+        if (healthy == useLocal) {
+            checksAgainst = 0;
+            return;
+        }
+        checksAgainst++;
+        if (checksAgainst < (useLocal ? FAILOVER_CHECKS : FAILBACK_CHECKS)) {
+            return;
+        }
+        checksAgainst = 0;
+        useLocal = healthy;
+        LOG.warn("Switching feature switch reads to " + getConnectionString());
+    }
+
+    private boolean isLocalHealthy() {
+        long localZxid;
+        try {
+            localZxid = readZxid(localConnectString, timeoutMillis);
+        } catch (IOException e) {
+            LOG.debug("Local read endpoint " + localConnectString + " is unavailable", e);
+            return false;
+        }
+        try {
+            long lag = lag(localZxid, readZxid(ensembleConnectString, timeoutMillis));
+            if (lag > maxLag) {
+                LOG.debug("Local read endpoint " + localConnectString + " is " + lag + " transactions behind");
+                return false;
+            }
+        } catch (IOException e) {
+            // the local endpoint is as good as anything else then
+            LOG.debug("Unable to read zxid of " + ensembleConnectString, e);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of transactions a zxid is behind another, or Long.MAX_VALUE if it is from an earlier epoch (i.e.
+     *         from before the last leader election)
+     */
+    static long lag(long zxid, long latestZxid) {
+        if (zxid >>> 32 != latestZxid >>> 32) {
+            return zxid < latestZxid ? Long.MAX_VALUE : 0;
+        }
+        return Math.max(0, latestZxid - zxid);
+    }
+
+    /**
+     * @return the latest zxid of the servers in a connect string that are serving requests
+     * @throws IOException
+     *             if none of them are
+     */
+    static long readZxid(String connectString, int timeoutMillis) throws IOException {
+        int chroot = connectString.indexOf('/');
+        String servers = chroot < 0 ? connectString : connectString.substring(0, chroot);
+        long zxid = -1;
+        IOException failure = null;
+        for (String server : servers.split(",")) {
+            int colon = server.lastIndexOf(':');
+            String host = colon < 0 ? server.trim() : server.substring(0, colon).trim();
+            int port = colon < 0 ? 2181 : Integer.parseInt(server.substring(colon + 1).trim());
+            try {
+                zxid = Math.max(zxid, readServerZxid(host, port, timeoutMillis));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (zxid < 0) {
+            throw failure != null ? failure : new IOException("No servers in " + connectString);
+        }
+        return zxid;
+    }
+
+    private static long readServerZxid(String host, int port, int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write("srvr".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith("Zxid:")) {
+                    return Long.decode(line.substring("Zxid:".length()).trim());
+                }
+            }
+            throw new IOException(host + ":" + port + " is not serving requests");
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected zxid from " + host + ":" + port, e);
+        } finally {
+            socket.close();
+        }
+    }
+}
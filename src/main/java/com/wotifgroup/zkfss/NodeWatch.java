@@ -0,0 +1,391 @@
+package com.wotifgroup.zkfss;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorEventType;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Watch on the data of a single node, which may not exist. This is a lightweight alternative to Curator's NodeCache that
+ * leaves connection state handling to its owner: a NodeCache re-reads its node on every reconnect, so a service holding many
+ * of them floods the ensemble as soon as it recovers. Within a session Zookeeper restores watches itself; after a session
+ * expires the owner calls refresh() on each watch, at whatever pace it likes. A watch whose node changed but could not be read
+ * again (e.g. as the connection was lost in between) is no longer set even within the session; it is recorded in its owner's
+ * FailedRefreshes, to be refreshed once reconnected.
+ * <p>
+ * A watch can have several listeners, so one watch can be shared by several services (see SharedWatchRegistry). A service
+ * may hold tens of thousands of watches, so a watch is its own Zookeeper watcher and keeps its listeners in a plain array.
+ * <p>
+ * Zookeeper 3.4 can not remove a watch: the watcher of a closed watch stays registered with the client (and the watch with the
+ * server) until the node next changes. A closed watch drops its listeners, and its owner keeps it in a Pool, so that watching
+ * the node again reopens it rather than setting yet another watch.
+ *
+ * @author lazjen
+ *
+ */
+class NodeWatch implements Closeable, CuratorWatcher {
+
+    /**
+     * Listener for changes to the watched node. Called on the Zookeeper event thread, or the thread that started the watch.
+     */
+    interface Listener {
+        void nodeChanged(NodeWatch watch, ChildData data);
+    }
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private final CuratorFramework client;
+    private final String path;
+    private final FailedRefreshes failedRefreshes;
+    private volatile Listener[] listeners = NO_LISTENERS; // copied on write, guarded by this watch
+
+    private volatile boolean closed = false;
+    private volatile ChildData currentData;
+
+    /**
+     * Whether Zookeeper holds the watch, i.e. it has been set by a read and has not fired since. Guarded by this watch.
+     */
+    private boolean watchSet;
+
+    /**
+     * The pool holding this watch while it is closed, guarded by this watch. Null if it is open, or can not be reopened.
+     */
+    private Pool pool;
+
+    /**
+     * Callbacks waiting on the refresh in flight, and those to run if it fails, guarded by this watch. Null if no refresh is in
+     * flight.
+     */
+    private List<Runnable> refreshCompletions;
+    private List<Runnable> refreshFailures;
+
+    /**
+     * Whether the read in flight is the first, started by startInBackground(), which does not notify the listeners.
+     */
+    private volatile boolean initialRead = false;
+
+    /**
+     * @param failedRefreshes
+     *            where to record the watch if a refresh fails, or null
+     */
+    NodeWatch(CuratorFramework client, String path, FailedRefreshes failedRefreshes) {
+        this.client = client;
+        this.path = path;
+        this.failedRefreshes = failedRefreshes;
+    }
+
+    NodeWatch(CuratorFramework client, String path, FailedRefreshes failedRefreshes, Listener listener) {
+        this(client, path, failedRefreshes);
+        addListener(listener);
+    }
+
+    synchronized void addListener(Listener listener) {
+        Listener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+
+    /**
+     * @return true if the watch has no listeners left
+     */
+    synchronized boolean removeListener(Listener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                Listener[] newListeners = new Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+                listeners = newListeners;
+                break;
+            }
+        }
+        return listeners.length == 0;
+    }
+
+    public void process(WatchedEvent event) throws Exception {
+        if (event.getType() != Watcher.Event.EventType.None) {
+            synchronized (this) {
+                watchSet = false;
+                if (closed) {
+                    // the watch is gone, so reopening it would miss changes
+                    if (pool != null) {
+                        pool.watches.remove(path, this);
+                        pool = null;
+                    }
+                    return;
+                }
+            }
+            refresh(null);
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the current data of the node, or null if it does not exist
+     */
+    ChildData getCurrentData() {
+        return currentData;
+    }
+
+    /**
+     * Reads the node and sets the watch on it, waiting for the result. The parents of the node are created (as containers) if
+     * need be, as NodeCache does. The listener is not called for the initial data.
+     *
+     * @throws Exception
+     *             if the node could not be read
+     */
+    void start() throws Exception {
+        client.createContainers(ZKPaths.getPathAndNode(path).getPath());
+        try {
+            Stat stat = new Stat();
+            byte[] data = client.getData().storingStatIn(stat).usingWatcher(this).forPath(path);
+            currentData = new ChildData(path, stat, data);
+            watchSet();
+        } catch (KeeperException.NoNodeException e) {
+            if (client.checkExists().usingWatcher(this).forPath(path) != null) {
+                refresh(null); // created in between
+            } else {
+                watchSet();
+            }
+        }
+    }
+
+    /**
+     * Starts the watch from the data of another watch of the same node, e.g. on another connection, without reading the node.
+     * The watch is only set by the next refresh(), which calls the listener if the node has changed since.
+     */
+    void startFrom(ChildData data) {
+        currentData = data;
+    }
+
+    /**
+     * Starts the watch without waiting for the node to be read, so that many watches can be started in one pipelined batch.
+     * The listener is not called for the initial data.
+     *
+     * @param onStarted
+     *            called when the node has been read
+     * @param onFailed
+     *            called instead if the node could not be read
+     */
+    void startInBackground(Runnable onStarted, Runnable onFailed) {
+        initialRead = true;
+        refresh(onStarted, onFailed);
+    }
+
+    /**
+     * Reads the node in the background, resetting the watch on it. If a read is already in flight, this waits for that read
+     * instead, as a read issued before a change is always answered before the change is notified.
+     *
+     * @param onComplete
+     *            called when the node has been read, or null. Not called if the read fails, in which case the watch is
+     *            recorded in its FailedRefreshes.
+     */
+    void refresh(Runnable onComplete) {
+        refresh(onComplete, null);
+    }
+
+    private void refresh(Runnable onComplete, Runnable onFailure) {
+        if (closed) {
+            complete(onComplete);
+            return;
+        }
+        synchronized (this) {
+            boolean reading = refreshCompletions != null;
+            if (!reading) {
+                refreshCompletions = new ArrayList<Runnable>();
+                refreshFailures = new ArrayList<Runnable>();
+            }
+            if (onComplete != null) {
+                refreshCompletions.add(onComplete);
+            }
+            if (onFailure != null) {
+                refreshFailures.add(onFailure);
+            }
+            if (reading) {
+                return;
+            }
+        }
+        read();
+    }
+
+    private void read() {
+        try {
+            client.getData().usingWatcher(this).inBackground(new BackgroundCallback() {
+
+                public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                    dataRead(event);
+                }
+            }).forPath(path);
+        } catch (Exception e) {
+            // not connected
+            refreshCompleted(false);
+        }
+    }
+
+    private void dataRead(CuratorEvent event) throws Exception {
+        int resultCode = event.getResultCode();
+        if (event.getType() == CuratorEventType.GET_DATA && resultCode == KeeperException.Code.OK.intValue()) {
+            watchSet();
+            setCurrentData(new ChildData(path, event.getStat(), event.getData()));
+            refreshCompleted(true);
+        } else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+            if (event.getType() == CuratorEventType.EXISTS) {
+                watchSet();
+                setCurrentData(null);
+                refreshCompleted(true);
+            } else {
+                // watch for the node being created
+                client.checkExists().usingWatcher(this).inBackground(new BackgroundCallback() {
+
+                    public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                        dataRead(event);
+                    }
+                }).forPath(path);
+            }
+        } else if (event.getType() == CuratorEventType.EXISTS && resultCode == KeeperException.Code.OK.intValue()) {
+            read(); // created in between
+        } else {
+            refreshCompleted(false);
+        }
+    }
+
+    private synchronized void watchSet() {
+        watchSet = true;
+    }
+
+    private void refreshCompleted(boolean success) {
+        List<Runnable> completions;
+        synchronized (this) {
+            completions = success ? refreshCompletions : refreshFailures;
+            refreshCompletions = null;
+            refreshFailures = null;
+        }
+        if (!success && !closed && failedRefreshes != null) {
+            // the watch is not set - the owner refreshes it once reconnected
+            failedRefreshes.watches.add(this);
+        }
+        if (completions != null) {
+            for (Runnable completion : completions) {
+                completion.run();
+            }
+        }
+    }
+
+    private void setCurrentData(ChildData data) {
+        ChildData previousData = currentData;
+        currentData = data;
+        if (initialRead) {
+            initialRead = false;
+            return;
+        }
+        if (previousData == null ? data != null : !previousData.equals(data)) {
+            for (Listener listener : listeners) {
+                listener.nodeChanged(this, data);
+            }
+        }
+    }
+
+    private static void complete(Runnable onComplete) {
+        if (onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    /**
+     * Stops reporting changes and drops the listeners. Zookeeper 3.4 can not remove a watch, so the watcher stays registered
+     * (and the watch set on the server) until the node next changes, when it is dropped.
+     */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Closes the watch, keeping it in a pool to be reopened while Zookeeper still holds its watch.
+     */
+    synchronized void close(Pool pool) {
+        closed = true;
+        listeners = NO_LISTENERS;
+        if (pool != null && watchSet) {
+            this.pool = pool;
+            pool.watches.put(path, this);
+        }
+    }
+
+    /**
+     * Reopens a closed watch for a listener. The current data is still that of the node, as the watch has not fired since.
+     *
+     * @return false if the watch can not be reopened, as it has fired since it was closed
+     */
+    private synchronized boolean reopen(Pool pool, Listener listener) {
+        if (this.pool != pool) {
+            return false;
+        }
+        this.pool = null;
+        closed = false;
+        addListener(listener);
+        return true;
+    }
+
+    /**
+     * The watches of one owner (on one CuratorFramework) whose last refresh failed.
+     */
+    static final class FailedRefreshes {
+
+        private final Set<NodeWatch> watches = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Refreshes the recorded watches, e.g. once reconnected. A watch that fails again is recorded again.
+         */
+        void refresh() {
+            for (NodeWatch watch : watches) {
+                if (watches.remove(watch)) {
+                    watch.refresh(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * The closed watches of one owner (on one CuratorFramework) whose Zookeeper watches are still set, by path. A closed watch
+     * leaves the pool when it fires.
+     */
+    static final class Pool {
+
+        private final ConcurrentHashMap<String, NodeWatch> watches = new ConcurrentHashMap<String, NodeWatch>();
+
+        /**
+         * @return the closed watch of a node reopened for a listener, or null if there is none
+         */
+        NodeWatch reopen(String path, Listener listener) {
+            NodeWatch watch = watches.remove(path);
+            return watch != null && watch.reopen(this, listener) ? watch : null;
+        }
+
+        /**
+         * @return the number of closed watches in the pool
+         */
+        int size() {
+            return watches.size();
+        }
+
+        void clear() {
+            watches.clear();
+        }
+    }
+}
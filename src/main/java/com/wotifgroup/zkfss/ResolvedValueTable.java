@@ -0,0 +1,79 @@
+package com.wotifgroup.zkfss;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The resolved rules of the feature switches of a service, indexed by an id given to each feature switch key, for snapshots.
+ * The entries of the service keep their own current rule for lookups; the table holds the same rules in one array, so a copy
+ * of it for a snapshot costs one array copy however many feature switches there are, rather than a copy of every entry. Ids
+ * of removed feature switches are reused, so the table stays as small as the number of feature switches.
+ * <p>
+ * Not thread safe: the service only changes its table holding its lock, and snapshots get a copy that is never changed.
+ *
+ * @author lazjen
+ *
+ */
+final class ResolvedValueTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final BitSet usedIds;
+    private FeatureSwitchRule[] rules;
+
+    ResolvedValueTable() {
+        this(new BitSet(), new FeatureSwitchRule[INITIAL_CAPACITY]);
+    }
+
+    private ResolvedValueTable(BitSet usedIds, FeatureSwitchRule[] rules) {
+        this.usedIds = usedIds;
+        this.rules = rules;
+    }
+
+    /**
+     * @return a free id, with a value of false until set
+     */
+    int allocate() {
+        int id = usedIds.nextClearBit(0);
+        usedIds.set(id);
+        if (id >= rules.length) {
+            rules = Arrays.copyOf(rules, Math.max(rules.length * 2, id + 1));
+        }
+        rules[id] = FeatureSwitchRule.FALSE;
+        return id;
+    }
+
+    /**
+     * Frees an id for reuse.
+     */
+    void release(int id) {
+        usedIds.clear(id);
+        rules[id] = null;
+    }
+
+    void set(int id, FeatureSwitchRule rule) {
+        rules[id] = rule;
+    }
+
+    boolean isEnabled(int id) {
+        return rules[id].getValue();
+    }
+
+    FeatureSwitchRule getRule(int id) {
+        return rules[id];
+    }
+
+    /**
+     * @return the number of ids in use
+     */
+    int size() {
+        return usedIds.cardinality();
+    }
+
+    /**
+     * @return a copy of the table, trimmed to the highest id in use
+     */
+    ResolvedValueTable copy() {
+        return new ResolvedValueTable((BitSet) usedIds.clone(), Arrays.copyOf(rules, usedIds.length()));
+    }
+}
@@ -0,0 +1,260 @@
+package com.wotifgroup.zkfss;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+
+/**
+ * Process-wide registry of node watches shared by the services that opt into it (see
+ * ZKFeatureSwitchService.enableSharedWatches()). There is one registry, and so one CuratorFramework, per connect string (or per
+ * CuratorFramework supplied to the services), and one watch per node path however many services look up the node. Each
+ * service listens to the shared watch and resolves the node value into its own feature switch table.
+ * <p>
+ * Registries and watches are reference counted: a watch is closed when the last service stops listening to it, and a
+ * registry created for a connect string closes its CuratorFramework when the last service releases it. A CuratorFramework
+ * supplied to the services is left to its owner.
+ *
+ * @author lazjen
+ *
+ */
+final class SharedWatchRegistry {
+
+    private static final Map<String, SharedWatchRegistry> REGISTRIES_BY_CONNECT_STRING =
+            new HashMap<String, SharedWatchRegistry>();
+    private static final Map<CuratorFramework, SharedWatchRegistry> REGISTRIES_BY_CLIENT =
+            new IdentityHashMap<CuratorFramework, SharedWatchRegistry>();
+
+    private final CuratorFramework client;
+    private final String connectString;
+    private int references = 0; // guarded by the class
+    private final Map<String, NodeWatch> watches = new HashMap<String, NodeWatch>(); // guarded by this registry
+    private final NodeWatch.Pool closedWatches = new NodeWatch.Pool();
+    /**
+     * The starts in flight by path, completed once the node has been read, guarded by this registry.
+     */
+    private final Map<String, CompletableFuture<Void>> pendingStarts = new HashMap<String, CompletableFuture<Void>>();
+    private final NodeWatch.FailedRefreshes failedRefreshes = new NodeWatch.FailedRefreshes();
+
+    private SharedWatchRegistry(CuratorFramework client, String connectString) {
+        this.client = client;
+        this.connectString = connectString;
+    }
+
+    /**
+     * Acquires the registry for a connect string, creating it and its CuratorFramework for the first service. Later services
+     * share the CuratorFramework, whatever retry policy and timeout they are configured with.
+     */
+    static synchronized SharedWatchRegistry acquire(String connectString, RetryPolicy retryPolicy, int connectionTimeoutMillis) {
+        SharedWatchRegistry registry = REGISTRIES_BY_CONNECT_STRING.get(connectString);
+        if (registry == null) {
+            CuratorFramework client =
+                    CuratorFrameworkFactory.builder().connectString(connectString).retryPolicy(retryPolicy)
+                            .connectionTimeoutMs(connectionTimeoutMillis).build();
+            client.start();
+            registry = new SharedWatchRegistry(client, connectString);
+            REGISTRIES_BY_CONNECT_STRING.put(connectString, registry);
+        }
+        registry.references++;
+        return registry;
+    }
+
+    /**
+     * Acquires the registry for a CuratorFramework supplied to the service.
+     */
+    static synchronized SharedWatchRegistry acquire(CuratorFramework client) {
+        SharedWatchRegistry registry = REGISTRIES_BY_CLIENT.get(client);
+        if (registry == null) {
+            registry = new SharedWatchRegistry(client, null);
+            REGISTRIES_BY_CLIENT.put(client, registry);
+        }
+        registry.references++;
+        return registry;
+    }
+
+    /**
+     * Releases the registry. The last release closes the remaining watches, and the CuratorFramework if the registry created
+     * it.
+     */
+    void release() {
+        synchronized (SharedWatchRegistry.class) {
+            if (--references > 0) {
+                return;
+            }
+            if (connectString != null) {
+                REGISTRIES_BY_CONNECT_STRING.remove(connectString);
+            } else {
+                REGISTRIES_BY_CLIENT.remove(client);
+            }
+        }
+        synchronized (this) {
+            for (NodeWatch watch : watches.values()) {
+                watch.close();
+            }
+            watches.clear();
+        }
+        closedWatches.clear();
+        if (connectString != null) {
+            client.close();
+        }
+    }
+
+    CuratorFramework getClient() {
+        return client;
+    }
+
+    NodeWatch.FailedRefreshes getFailedRefreshes() {
+        return failedRefreshes;
+    }
+
+    /**
+     * Adds a listener to the watch of a node, starting the watch (or reopening the closed one) if this is its first listener.
+     * The current data of the returned watch is already loaded: the node is read outside the registry lock, and services
+     * watching the node while it is read wait for that read.
+     *
+     * @throws Exception
+     *             if the watch could not be started
+     */
+    NodeWatch watch(String path, NodeWatch.Listener listener) throws Exception {
+        NodeWatch watch;
+        CompletableFuture<Void> started;
+        boolean starting;
+        synchronized (this) {
+            CompletableFuture<Void> pending = pendingStarts.get(path);
+            started = addListener(path, listener);
+            starting = started != null && started != pending;
+            watch = watches.get(path);
+        }
+
+        if (starting) {
+            try {
+                watch.start();
+            } catch (Exception e) {
+                startFailed(watch, started, e);
+                throw e;
+            }
+            started(watch, started);
+        } else if (started != null) {
+            try {
+                started.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        return watch;
+    }
+
+    /**
+     * Adds a listener to the watch of a node as watch() does, without waiting for the node to be read.
+     *
+     * @param onLoaded
+     *            called once the current data of the watch is loaded
+     * @param onFailed
+     *            called instead if the node could not be read, in which case the watch is dropped
+     */
+    NodeWatch watchInBackground(String path, NodeWatch.Listener listener, final Runnable onLoaded, final Runnable onFailed) {
+        final NodeWatch watch;
+        final CompletableFuture<Void> started;
+        boolean starting;
+        synchronized (this) {
+            CompletableFuture<Void> pending = pendingStarts.get(path);
+            started = addListener(path, listener);
+            starting = started != null && started != pending;
+            watch = watches.get(path);
+        }
+
+        if (starting) {
+            watch.startInBackground(new Runnable() {
+
+                public void run() {
+                    started(watch, started);
+                    onLoaded.run();
+                }
+            }, new Runnable() {
+
+                public void run() {
+                    startFailed(watch, started, new IOException("Unable to read " + watch.getPath()));
+                    onFailed.run();
+                }
+            });
+        } else if (started != null) {
+            started.whenComplete(new BiConsumer<Void, Throwable>() {
+
+                public void accept(Void result, Throwable failure) {
+                    (failure == null ? onLoaded : onFailed).run();
+                }
+            });
+        } else {
+            onLoaded.run();
+        }
+        return watch;
+    }
+
+    /**
+     * Adds a listener to the watch of a node, reopening the closed watch or adding a new one (for the caller to start) if
+     * this is its first listener. Must be called holding the registry lock.
+     *
+     * @return the start of the watch in flight (new if the caller is to start it), or null if the watch has been read
+     */
+    private CompletableFuture<Void> addListener(String path, NodeWatch.Listener listener) {
+        NodeWatch watch = watches.get(path);
+        if (watch != null) {
+            watch.addListener(listener);
+            return pendingStarts.get(path);
+        }
+        watch = closedWatches.reopen(path, listener);
+        if (watch != null) {
+            watches.put(path, watch);
+            return null;
+        }
+        CompletableFuture<Void> started = new CompletableFuture<Void>();
+        watches.put(path, new NodeWatch(client, path, failedRefreshes, listener));
+        pendingStarts.put(path, started);
+        return started;
+    }
+
+    private void started(NodeWatch watch, CompletableFuture<Void> started) {
+        synchronized (this) {
+            pendingStarts.remove(watch.getPath());
+        }
+        started.complete(null);
+    }
+
+    /**
+     * Drops a watch whose node could not be read, along with the listeners added while it was read.
+     */
+    private void startFailed(NodeWatch watch, CompletableFuture<Void> started, Exception e) {
+        synchronized (this) {
+            pendingStarts.remove(watch.getPath());
+            if (watches.get(watch.getPath()) == watch) {
+                watches.remove(watch.getPath());
+            }
+        }
+        watch.close();
+        started.completeExceptionally(e);
+    }
+
+    /**
+     * Removes a listener from a watch, closing the watch if it was the last listener.
+     */
+    synchronized void unwatch(NodeWatch watch, NodeWatch.Listener listener) {
+        if (watch.removeListener(listener) && watches.get(watch.getPath()) == watch) {
+            watches.remove(watch.getPath());
+            watch.close(closedWatches);
+        }
+    }
+
+    /**
+     * @return the number of nodes watched
+     */
+    synchronized int getWatchCount() {
+        return watches.size();
+    }
+}
@@ -0,0 +1,104 @@
+package com.wotifgroup.zkfss;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local snapshot of resolved feature switch values, used by ZKFeatureSwitchService to serve values at start up before (or
+ * without) Zookeeper being available.
+ * <p>
+ * The file is a compact binary encoding of the values: a header, the number of entries and then each key (modified UTF-8)
+ * followed by its value. It is always replaced atomically, so a reader sees either the previous or the new snapshot.
+ *
+ * @author lazjen
+ *
+ */
+class SnapshotFile {
+
+    private static final int MAGIC = 0x7a6b6673; // "zkfs"
+    private static final byte VERSION = 1;
+
+    private final File file;
+
+    SnapshotFile(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the feature switch values in the snapshot, or null if there is no snapshot file
+     * @throws IOException
+     *             if the snapshot file can not be read or is not a valid snapshot
+     */
+    Map<String, Boolean> read() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException("Not a zkfss snapshot file: " + file);
+            }
+            int count = in.readInt();
+            Map<String, Boolean> values = new HashMap<String, Boolean>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                values.put(key, in.readBoolean());
+            }
+            return values;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the feature switch values to a temporary file alongside the snapshot file, then moves it over the snapshot file.
+     *
+     * @param values
+     *            feature switch values to write
+     * @throws IOException
+     *             if the snapshot file can not be written
+     */
+    void write(Map<String, Boolean> values) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt(values.size());
+                for (Map.Entry<String, Boolean> value : values.entrySet()) {
+                    out.writeUTF(value.getKey());
+                    out.writeBoolean(value.getValue());
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+}
@@ -1,20 +1,71 @@
 package com.wotifgroup.zkfss;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Function;
 
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.cache.ChildData;
-import org.apache.curator.framework.recipes.cache.NodeCache;
-import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.framework.recipes.cache.TreeCacheSelector;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.ThreadUtils;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * ZKFeatureSwitchService (zkfss) is a feature switch service implementation based on Apache Zookeeper (using Netflix Curator API).
  * <p>
+ * The node values can also come from another FeatureSwitchBackend (see setBackend()), e.g. in memory for tests.
+ * <p>
  * See the README.md for more details on zkfss (https://github.com/lazjen/zkfss).
  * 
  * @author lazjen
@@ -22,25 +73,187 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
  */
 public class ZKFeatureSwitchService implements FeatureSwitchService {
 
-    private static final String DEFAULT_FEATURE_SWITCH_NAMESPACE = "/zkfss/";
+    private static final Logger LOG = LoggerFactory.getLogger(ZKFeatureSwitchService.class);
+
+    static final String DEFAULT_FEATURE_SWITCH_NAMESPACE = "/zkfss/";
 
     private static final int DEFAULT_CONNECTION_TIMEOUT_MILLIS = 30000;
+    private static final long DEFAULT_PRELOAD_TIMEOUT_MILLIS = 30000;
+    private static final long SNAPSHOT_RECONCILE_RETRY_MILLIS = 5000;
+    private static final long MANIFEST_RETRY_MILLIS = 5000;
+    private static final long DEFAULT_LISTENER_COALESCE_MILLIS = 50;
+    private static final long DEFAULT_EVICTION_SWEEP_MILLIS = 1000;
+    private static final long DEFAULT_RESYNC_JITTER_MILLIS = 5000;
+    private static final int DEFAULT_RESYNC_READS_PER_SECOND = 500;
+    private static final long RESYNC_BATCH_MILLIS = 100;
+    private static final int DEFAULT_WATCH_EVENT_QUEUE_CAPACITY = 10000;
+    private static final int WATCH_EVENT_BATCH_SIZE = 1000;
     private static final String DEFAULT_CONNECT_STRING = "localhost:2181";
+    private static final long DEFAULT_LOCAL_READ_MAX_LAG = 1000;
+    /** the most override dimensions, including the application name and hostname: 2^4 = 16 nodes per feature switch */
+    static final int MAX_OVERRIDE_DIMENSIONS = 4;
+    private static final long DEFAULT_LOCAL_READ_CHECK_MILLIS = 5000;
+
+    private static final Function<FeatureSwitchEntry, Boolean> ENABLED = new Function<FeatureSwitchEntry, Boolean>() {
 
-    private boolean running = false;
+        public Boolean apply(FeatureSwitchEntry entry) {
+            return entry.enabled;
+        }
+    };
+
+    private static final AtomicReferenceFieldUpdater<NodeListener, WatchEvent> PENDING_WATCH_EVENT =
+            AtomicReferenceFieldUpdater.newUpdater(NodeListener.class, WatchEvent.class, "pendingEvent");
 
-    private CuratorFramework client;
+    private volatile boolean running = false;
+
+    private volatile CuratorFramework client;
+    /**
+     * The client the backend reads through: the client itself, or with a local read endpoint one connected to the endpoint in
+     * use, replaced when moving between the local read endpoint and the ensemble.
+     */
+    private volatile CuratorFramework readClient;
     private RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
     private String connectString = DEFAULT_CONNECT_STRING;
+    private String localReadConnectString;
+    private long localReadMaxLag = DEFAULT_LOCAL_READ_MAX_LAG;
+    private long localReadCheckMillis = DEFAULT_LOCAL_READ_CHECK_MILLIS;
     private int connectionTimeoutMillis = DEFAULT_CONNECTION_TIMEOUT_MILLIS;
 
     private boolean useHostnameSubKey = true;
     private String hostname;
     private String applicationName;
+    private final Map<String, String> overrideDimensions = new LinkedHashMap<String, String>();
     private String featureSwitchNamespace = DEFAULT_FEATURE_SWITCH_NAMESPACE;
+    private final List<String> lowerPrecedenceNamespaces = new ArrayList<String>();
+    private boolean useNamespaceTreeWatch = false;
+    private boolean usePreload = false;
+    private boolean useManifest = false;
+    private long preloadTimeoutMillis = DEFAULT_PRELOAD_TIMEOUT_MILLIS;
+    private File snapshotFile;
+    private Executor listenerExecutor;
+    private long listenerCoalesceMillis = DEFAULT_LISTENER_COALESCE_MILLIS;
+    private boolean useMetrics = false;
+    private FeatureSwitchMetricsReporter metricsReporter;
+    private long metricsReportPeriodMillis;
+    private int maxFeatureSwitches = 0;
+    private long featureSwitchIdleTimeoutMillis = 0;
+    private boolean useNonBlockingLookup = false;
+    private boolean unknownFeatureSwitchDefault = false;
+    private long resyncJitterMillis = DEFAULT_RESYNC_JITTER_MILLIS;
+    private int resyncReadsPerSecond = DEFAULT_RESYNC_READS_PER_SECOND;
+    private boolean useSharedWatches = false;
+    private SharedWatchRegistry watchRegistry;
+    private FeatureSwitchBackend configuredBackend;
+    private FeatureSwitchBackend backend;
+    private Executor configuredWatchEventExecutor;
+    private int watchEventQueueCapacity = DEFAULT_WATCH_EVENT_QUEUE_CAPACITY;
+
+    /**
+     * The resolution plan: path suffixes (relative to a feature switch node) in override precedence order, built at start().
+     */
+    private String[] overridePathSuffixes;
+    private String[] overrideLevelNames;
+    private Map<String, Integer> overrideLevelsBySuffix;
+
+    /**
+     * The backend node name prefix of each level: empty with a single namespace, otherwise the namespace of the level (without
+     * the leading "/"), the backend then naming nodes from the root.
+     */
+    private String[] levelNodePrefixes;
+
+    /**
+     * Guards the raw node values and node watches. Only held while adding watches or applying node changes (never while
+     * reading the nodes of a new feature switch), never by a lookup of an already resolved feature switch.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The node values and watches of each feature switch, by override level. Node paths are only built to set up a watch.
+     */
+    private final Map<String, FeatureSwitchNodes> featureSwitchNodes = new HashMap<String, FeatureSwitchNodes>();
+    private int nodeWatchCount = 0;
+    private TreeCache treeCache;
+    private PathChildrenCache namespaceChildrenCache;
+    private NodeWatch manifestWatch;
+    private final AtomicBoolean manifestLoadScheduled = new AtomicBoolean();
+
+    /**
+     * The manifest last loaded, and the values of the nodes in it relevant to this service. Guarded by the lock.
+     */
+    private FeatureSwitchManifest manifest;
+    private Map<String, byte[]> manifestNodes = Collections.emptyMap();
+    private ScheduledExecutorService backgroundExecutor;
+    private SnapshotFile snapshotStore;
+    private final AtomicBoolean snapshotWritePending = new AtomicBoolean();
+    private FeatureSwitchMetrics metrics;
+    private ObjectName metricsObjectName;
+
+    /**
+     * Immutable table of feature switches by key. Each entry holds the resolved value of its feature switch and is updated in
+     * place (it is also the handle returned by bind()), so the table is only replaced (copy-on-write) when feature switches
+     * are added or evicted and isEnabled() needs no locking. A published table is never modified, and never handed out, so it
+     * is not wrapped (a HashMap keeps the lookup a direct call).
+     */
+    private volatile HashMap<String, FeatureSwitchEntry> featureSwitches = new HashMap<String, FeatureSwitchEntry>();
+    private boolean evictionScheduled = false;
+
+    /**
+     * The resolved rules by feature switch id, in one array for snapshots to copy. Guarded by the lock.
+     */
+    private ResolvedValueTable resolvedValues = new ResolvedValueTable();
+
+    /**
+     * Version of the feature switch values, bumped (under the lock) whenever a value changes or feature switches are added or
+     * evicted. The snapshot of each version is built along with it, so taking a snapshot is a single volatile read.
+     */
+    private long version = 0;
+    private volatile Snapshot currentSnapshot;
+
+    private final List<ListenerRegistration> listeners = new CopyOnWriteArrayList<ListenerRegistration>();
+    private ScheduledExecutorService notificationExecutor;
+
+    /**
+     * Node changes waiting to be applied on the watch event executor: the listener of each changed node is queued once,
+     * holding the latest change (see NodeListener). Null executor if changes are applied on the thread notifying them.
+     */
+    private Executor watchEventExecutor;
+    private ExecutorService ownWatchEventExecutor;
+    private final ConcurrentLinkedQueue<NodeListener> queuedWatchEvents = new ConcurrentLinkedQueue<NodeListener>();
+    private final AtomicInteger queuedWatchEventCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Runnable> watchEventCompletions = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean watchEventDrainScheduled = new AtomicBoolean();
+    private final AtomicLong watchEventSequence = new AtomicLong();
+
+    /**
+     * Value of each changed feature switch before the pending notification, guarded by the lock.
+     */
+    private final Map<String, Boolean> pendingChanges = new LinkedHashMap<String, Boolean>();
+    private boolean notificationScheduled = false;
 
-    private Map<String, Boolean> featureValues = new HashMap<String, Boolean>();
-    private Map<String, NodeCache> nodeCaches = new HashMap<String, NodeCache>();
+    /**
+     * Feature switches being set up in the background, guarded by the lock.
+     */
+    private final Map<String, CompletableFuture<FeatureSwitchEntry>> pendingSetups =
+            new HashMap<String, CompletableFuture<FeatureSwitchEntry>>();
+
+    /**
+     * Values are stale while the connection to Zookeeper is down, and while they are being resynchronised after the session
+     * expired (or from a snapshot at start up). Stale values are still served.
+     */
+    private volatile boolean disconnected = false;
+    private volatile boolean resyncing = false;
+    private boolean resyncScheduled = false; // guarded by the lock
+    private long sessionId; // of readClient, only used by the connection state listener and checkLocalRead()
+    private LocalReadEndpoint localReadEndpoint;
+    private String readConnectString; // of readClient, with a local read endpoint - only used by checkLocalRead()
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (client == readClient) {
+                connectionStateChanged(newState);
+            }
+        }
+    };
 
     /**
      * Set a CuratorFramework for the system. If you set this to null, the service will create its own CuratorFramework.
@@ -59,7 +272,8 @@ public class ZKFeatureSwitchService implements FeatureSwitchService {
 
     /**
      * Returns the CuratorFramework used in this service which can be useful if you want to use a framework created by the
-     * service.
+     * service. Null with a backend other than Zookeeper. With a local read endpoint it is connected to the ensemble, whichever
+     * endpoint the feature switches are read from.
      * 
      * @return the CuratorFramework used in this service
      */
@@ -130,6 +344,67 @@ public class ZKFeatureSwitchService implements FeatureSwitchService {
         return this;
     }
 
+    /**
+     * Set a preferred local endpoint to read from, e.g. a Zookeeper observer in the same data centre, in addition to the
+     * authoritative ensemble of setConnectString(). All reads and watches are served by the local endpoint while it is
+     * healthy: its last zxid is checked against the ensemble's periodically (see setLocalReadCheckMillis()), and if it can not
+     * be reached or falls too far behind (see setLocalReadMaxLag()) the service fails over to the ensemble, and back once it
+     * has caught up. The service reads through a CuratorFramework of its own while on the local endpoint, and through the
+     * ensemble's (see getCuratorFrameworkClient()) otherwise: moving between the endpoints moves the watches to the other
+     * one, after which the watched feature switches are reloaded as after a session expiry. Only used if the service creates the
+     * CuratorFramework, with a watch per feature switch (not with preload, the namespace tree watch, the manifest or shared
+     * watches).
+     * <P>
+     * Default: none
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param localReadConnectString
+     *            The zookeeper connection string of the local endpoint, or null to read from the ensemble
+     * @return this service
+     */
+    public ZKFeatureSwitchService setLocalReadConnectString(String localReadConnectString) {
+        ensureServiceIsNotRunning();
+        this.localReadConnectString = localReadConnectString;
+        return this;
+    }
+
+    /**
+     * Set the largest number of transactions the local read endpoint may be behind the ensemble before the service fails
+     * over to the ensemble. A local endpoint that has not caught up with the latest leader election is always behind.
+     * <P>
+     * Default: 1000
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param localReadMaxLag
+     *            the number of transactions
+     * @return this service
+     */
+    public ZKFeatureSwitchService setLocalReadMaxLag(long localReadMaxLag) {
+        ensureServiceIsNotRunning();
+        this.localReadMaxLag = localReadMaxLag;
+        return this;
+    }
+
+    /**
+     * Set how often (in millis) the health of the local read endpoint is checked. The service fails over after two unhealthy
+     * checks in a row, and fails back after three healthy ones.
+     * <P>
+     * Default: 5000 ms
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param localReadCheckMillis
+     *            the time between checks (in millis)
+     * @return this service
+     */
+    public ZKFeatureSwitchService setLocalReadCheckMillis(long localReadCheckMillis) {
+        ensureServiceIsNotRunning();
+        this.localReadCheckMillis = localReadCheckMillis;
+        return this;
+    }
+
     /**
      * Set the zookeeper connection timeout (in millis) to use in the CuratorFramework. This is only used if the service creates
      * the CuratorFramework.
@@ -169,6 +444,43 @@ public class ZKFeatureSwitchService implements FeatureSwitchService {
         return this;
     }
 
+    /**
+     * Add an override dimension, e.g. ("datacenter", "syd1"), ("environment", "prod") or ("canary", "group2"). Dimensions take
+     * precedence in the order they are added, after the application name and hostname (if used).<br>
+     * Override values are stored at every combination of the dimension values, in dimension order. E.g. with application
+     * name "A" and a datacenter dimension of "D", the values of feature switch "X" are looked up at "/zkfss/X/A/D",
+     * "/zkfss/X/A", "/zkfss/X/D" and "/zkfss/X", in that order. The lookup order is compiled once at start() and each feature
+     * switch is resolved when its nodes change, so a lookup costs the same with any number of dimensions. Loading a feature
+     * switch does not: each dimension doubles the number of nodes read and watched per feature switch (2^N with N dimensions
+     * including the application name and hostname), whether or not the nodes exist. At most MAX_OVERRIDE_DIMENSIONS (4, i.e.
+     * 16 nodes per feature switch) dimensions can be used, including the application name and hostname.
+     * <P>
+     * Default: None
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param name
+     *            name of the dimension, used in metrics
+     * @param value
+     *            this service's value of the dimension, used as a sub-key
+     * @return this service
+     */
+    public ZKFeatureSwitchService addOverrideDimension(String name, String value) {
+        ensureServiceIsNotRunning();
+        if (name == null || name.isEmpty() || "application".equals(name) || "host".equals(name)
+                || overrideDimensions.containsKey(name)) {
+            throw new IllegalArgumentException("Invalid or duplicate override dimension name: " + name);
+        }
+        if (value == null || value.isEmpty() || value.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid override dimension value: " + value);
+        }
+        if (overrideDimensions.size() >= MAX_OVERRIDE_DIMENSIONS) {
+            throw new IllegalArgumentException("At most " + MAX_OVERRIDE_DIMENSIONS + " override dimensions can be used");
+        }
+        overrideDimensions.put(name, value);
+        return this;
+    }
+
     /**
      * Set the namespace to use for feature switches. If the namespace supplied does not start and end with a "/", these are
      * added.
@@ -184,175 +496,2683 @@ public class ZKFeatureSwitchService implements FeatureSwitchService {
 
     public ZKFeatureSwitchService setFeatureSwitchNamespace(String featureSwitchNamespace) {
         ensureServiceIsNotRunning();
-        this.featureSwitchNamespace = featureSwitchNamespace;
-        if (this.featureSwitchNamespace == null) {
-            this.featureSwitchNamespace = DEFAULT_FEATURE_SWITCH_NAMESPACE;
-        }
-        if (!this.featureSwitchNamespace.endsWith("/")) {
-            this.featureSwitchNamespace = this.featureSwitchNamespace + "/";
-        }
-        if (!this.featureSwitchNamespace.startsWith("/")) {
-            this.featureSwitchNamespace = "/" + this.featureSwitchNamespace;
-        }
+        this.featureSwitchNamespace = normaliseFeatureSwitchNamespace(featureSwitchNamespace);
         return this;
     }
 
     /**
-     * Start this service. Must be called before any use of isEnabled(). Should be called after all configuration details have
-     * been set.
+     * Mount another namespace of feature switches, below the namespace set by setFeatureSwitchNamespace() and any added before
+     * it in precedence, e.g. a platform wide namespace below a team's own:
+     * 
+     * <pre>
+     * new ZKFeatureSwitchService().setFeatureSwitchNamespace(&quot;/team/&quot;).addFeatureSwitchNamespace(&quot;/platform/&quot;)
+     * </pre>
+     * 
+     * A feature switch is resolved from the first namespace holding a value for it (at any override level), so a team can
+     * override a platform feature switch by setting it in its own namespace. All namespaces resolve into the one table of
+     * feature switches, so a lookup costs the same however many are mounted, but each feature switch is watched in each
+     * namespace.
+     * <P>
+     * Several namespaces can not be combined with preload, the namespace tree watch or the manifest. With another backend
+     * (see setBackend()), the nodes are named by their full path without the leading "/", e.g. "platform/X/myApp".
+     * <P>
+     * NOTE: Service must not be running.
      * 
+     * @param featureSwitchNamespace
+     *            Namespace for feature switches
      * @return this service
      */
-    public ZKFeatureSwitchService start() {
-        if (running) {
-            return this;
-        }
-        if (client == null) {
-            client =
-                    CuratorFrameworkFactory.builder().connectString(connectString).retryPolicy(retryPolicy)
-                            .connectionTimeoutMs(connectionTimeoutMillis).build();
-            client.start();
-        }
-
-        if (useHostnameSubKey) {
-            try {
-                hostname = java.net.InetAddress.getLocalHost().getHostName();
-            } catch (UnknownHostException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        running = true;
-
+    public ZKFeatureSwitchService addFeatureSwitchNamespace(String featureSwitchNamespace) {
+        ensureServiceIsNotRunning();
+        lowerPrecedenceNamespaces.add(normaliseFeatureSwitchNamespace(featureSwitchNamespace));
         return this;
     }
 
-    private void ensureServiceIsNotRunning() {
-        if (running) {
-            throw new IllegalStateException("Configuration changes to running ZKFeatureSwitchService are not allowed!");
-        }
-    }
-
     /**
-     * Stop the service. This will close the CuratorFramework.
+     * @return the mounted namespaces, in precedence order
      */
-    public void stop() {
-        running = false;
-        client.close();
-        client = null;
+    private List<String> featureSwitchNamespaces() {
+        List<String> namespaces = new ArrayList<String>();
+        namespaces.add(featureSwitchNamespace);
+        namespaces.addAll(lowerPrecedenceNamespaces);
+        return namespaces;
     }
 
-    public boolean isEnabled(String key) {
-
-        if (!running) {
-            throw new IllegalStateException("ZKFeatureSwitchService not running!");
-        }
-
-        if (applicationName != null && useHostnameSubKey) {
-            String keyForApplicationName = featureSwitchNamespace + key + "/" + applicationName + "/" + hostname;
-
-            if (featureValues.containsKey(keyForApplicationName)) {
-                return featureValues.get(keyForApplicationName);
-            } else {
-                if (!nodeCaches.containsKey(keyForApplicationName)) {
-                    // create watch on node
-                    Boolean result = setupNodeWatch(keyForApplicationName);
-                    if (result != null) {
-                        return result;
-                    }
-                }
-            }
+    /**
+     * @return the namespace with a leading and trailing "/", or the default namespace if null
+     */
+    static String normaliseFeatureSwitchNamespace(String featureSwitchNamespace) {
+        if (featureSwitchNamespace == null) {
+            return DEFAULT_FEATURE_SWITCH_NAMESPACE;
         }
-
-        if (applicationName != null) {
-            String keyForApplicationName = featureSwitchNamespace + key + "/" + applicationName;
-
-            if (featureValues.containsKey(keyForApplicationName)) {
-                return featureValues.get(keyForApplicationName);
-            } else {
-                if (!nodeCaches.containsKey(keyForApplicationName)) {
-                    // create watch on node
-                    Boolean result = setupNodeWatch(keyForApplicationName);
-                    if (result != null) {
-                        return result;
-                    }
-                }
-            }
+        if (!featureSwitchNamespace.endsWith("/")) {
+            featureSwitchNamespace = featureSwitchNamespace + "/";
         }
-
-        if (useHostnameSubKey) {
-            String keyForHostname = featureSwitchNamespace + key + "/" + hostname;
-
-            if (featureValues.containsKey(keyForHostname)) {
-                return featureValues.get(keyForHostname);
-            } else {
-                if (!nodeCaches.containsKey(keyForHostname)) {
-                    // create watch on node
-                    Boolean result = setupNodeWatch(keyForHostname);
-                    if (result != null) {
-                        return result;
-                    }
-                }
-            }
+        if (!featureSwitchNamespace.startsWith("/")) {
+            featureSwitchNamespace = "/" + featureSwitchNamespace;
         }
+        return featureSwitchNamespace;
+    }
 
-        String fsKey = featureSwitchNamespace + key;
-        if (featureValues.containsKey(fsKey)) {
-            return featureValues.get(fsKey);
-        } else {
-            if (!nodeCaches.containsKey(fsKey)) {
-                // create watch on node
-                Boolean result =  setupNodeWatch(fsKey);
-                if (result != null) {
-                    return result;
-                }
-            }
-        }
+    /**
+     * Watch the whole feature switch namespace with a single tree cache instead of setting up watches per feature switch
+     * (and per override level) on first use. Only the feature switch nodes and the override nodes for this application and
+     * host are watched, so the number of watches scales with the nodes that actually exist. Off by default.
+     * <P>
+     * When on, start() always preloads the existing feature switches (see enablePreload()) and a lookup of an unknown feature
+     * switch returns false without any network I/O.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService enableNamespaceTreeWatch() {
+        ensureServiceIsNotRunning();
+        useNamespaceTreeWatch = true;
+        return this;
+    }
 
-        return false;
+    /**
+     * Disables the namespace tree watch, i.e. watches are set up per feature switch on first use. This is the default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService disableNamespaceTreeWatch() {
+        ensureServiceIsNotRunning();
+        useNamespaceTreeWatch = false;
+        return this;
     }
 
-    private Boolean setupNodeWatch(final String key) {
-        final NodeCache nc = new NodeCache(client, key);
-        nodeCaches.put(key, nc);
+    /**
+     * Preload all feature switches (and the override values relevant to this service) in the namespace when the service is
+     * started, so that lookups never have to wait on Zookeeper. Off by default.
+     * <P>
+     * The existing feature switches are listed and their values read in one pipelined batch before watches are set up in the
+     * background. Feature switches created later are picked up by a watch on the namespace, so a lookup of an unknown feature
+     * switch returns false without any network I/O. See setPreloadTimeoutMillis() for how long start() waits.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService enablePreload() {
+        ensureServiceIsNotRunning();
+        usePreload = true;
+        return this;
+    }
 
-        try {
-            nc.start(true);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Disables preloading, i.e. each feature switch is loaded (and watched) on its first lookup. This is the default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService disablePreload() {
+        ensureServiceIsNotRunning();
+        usePreload = false;
+        return this;
+    }
 
-        nc.getListenable().addListener(new NodeCacheListener() {
+    /**
+     * Load the feature switches from the aggregated manifest of the namespace instead of from the feature switch nodes. The
+     * manifest is a single node (e.g. "/zkfss.manifest" for the namespace "/zkfss/") holding the values of every feature
+     * switch and override node, kept up to date by a ZKFeatureSwitchWriter with its manifest enabled. The service reads it
+     * once at start and keeps a single watch on it, rather than reading and watching each node, which cuts the load on the
+     * ensemble for large numbers of services and feature switches. A manifest too big for one node is split into chunks, of
+     * which only those that changed are read again. Off by default.
+     * <P>
+     * As with preload, start() waits for the manifest to be loaded (see setPreloadTimeoutMillis()) and a lookup of an unknown
+     * feature switch returns false without any network I/O. Changes made without updating the manifest are not seen.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService enableManifest() {
+        ensureServiceIsNotRunning();
+        useManifest = true;
+        return this;
+    }
 
-            public void nodeChanged() throws Exception {
-                cacheCurrentValue(key, nc);
-            }
-        });
+    /**
+     * Disables the manifest, i.e. the feature switch nodes are read and watched. This is the default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService disableManifest() {
+        ensureServiceIsNotRunning();
+        useManifest = false;
+        return this;
+    }
 
-        // ensure the current value is setup if it's set
-        return cacheCurrentValue(key, nc);
+    /**
+     * Set the maximum time (in millis) start() waits for the preload of feature switches to complete. If the preload takes
+     * longer, start() returns anyway and the preload completes in the background; until then unknown feature switches are
+     * deemed to be set to false. Use 0 to never wait.
+     * <P>
+     * Default: 30000 ms
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param preloadTimeoutMillis
+     *            the maximum time (in millis) to wait for the preload
+     * @return this service
+     */
+    public ZKFeatureSwitchService setPreloadTimeoutMillis(long preloadTimeoutMillis) {
+        ensureServiceIsNotRunning();
+        this.preloadTimeoutMillis = preloadTimeoutMillis;
+        return this;
     }
 
-    private Boolean cacheCurrentValue(final String key, final NodeCache nc) {
-        Boolean value = null;  // default if no correct data set
-        ChildData currentData = nc.getCurrentData();
-        if (currentData != null) {
-            byte[] newDataValue = currentData.getData();
-            if (newDataValue != null) {
-                String stringvalue = new String(newDataValue);
-                if ("true".equalsIgnoreCase(stringvalue) || "1".equals(stringvalue)) {
-                    value = true;
-                } else if ("false".equalsIgnoreCase(stringvalue) || "0".equals(stringvalue)) {
-                    value = false;
-                }
-            }
-        }
-        if (value != null) {
-            featureValues.put(key, value);
-        } else {
-            featureValues.remove(key);
-        }
-        return value;
+    /**
+     * Set a local file to keep a snapshot of the resolved feature switch values in. The snapshot is rewritten (atomically)
+     * whenever a value changes. If the file exists when the service is started, its values are served straight away and
+     * reconciled with Zookeeper in the background, so start up does not depend on Zookeeper being available. By default no
+     * snapshot is kept.
+     * <P>
+     * The snapshot holds the values as resolved for this service's application name and host, so it should not be shared with
+     * other applications. Only the boolean values are kept; rollout rules and typed values are served once loaded from
+     * Zookeeper.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param snapshotFile
+     *            file to keep the snapshot in, or null for no snapshot
+     * @return this service
+     */
+    public ZKFeatureSwitchService setSnapshotFile(File snapshotFile) {
+        ensureServiceIsNotRunning();
+        this.snapshotFile = snapshotFile;
+        return this;
     }
 
+    /**
+     * Set the executor used to call feature switch listeners. By default listeners are called on a thread owned by the
+     * service. With an executor running several threads, consecutive changes may be delivered to a listener out of order.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param listenerExecutor
+     *            executor to call listeners with, or null for the default
+     * @return this service
+     */
+    public ZKFeatureSwitchService setListenerExecutor(Executor listenerExecutor) {
+        ensureServiceIsNotRunning();
+        this.listenerExecutor = listenerExecutor;
+        return this;
+    }
+
+    /**
+     * Set how long (in millis) to collect feature switch changes before notifying listeners of them in a single call.
+     * <P>
+     * Default: 50 ms
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param listenerCoalesceMillis
+     *            the time (in millis) to collect changes for
+     * @return this service
+     */
+    public ZKFeatureSwitchService setListenerCoalesceMillis(long listenerCoalesceMillis) {
+        ensureServiceIsNotRunning();
+        this.listenerCoalesceMillis = listenerCoalesceMillis;
+        return this;
+    }
+
+    /**
+     * Collect metrics on lookups, watches and updates (see getMetrics()). The metrics are also registered as an MXBean with
+     * the platform MBean server. Off by default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService enableMetrics() {
+        ensureServiceIsNotRunning();
+        useMetrics = true;
+        return this;
+    }
+
+    /**
+     * Disables metrics. This is the default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService disableMetrics() {
+        ensureServiceIsNotRunning();
+        useMetrics = false;
+        metricsReporter = null;
+        return this;
+    }
+
+    /**
+     * Set a reporter to be called with the metrics periodically. This enables metrics.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param metricsReporter
+     *            the reporter
+     * @param reportPeriodMillis
+     *            time (in millis) between reports
+     * @return this service
+     */
+    public ZKFeatureSwitchService setMetricsReporter(FeatureSwitchMetricsReporter metricsReporter, long reportPeriodMillis) {
+        ensureServiceIsNotRunning();
+        useMetrics = true;
+        this.metricsReporter = metricsReporter;
+        this.metricsReportPeriodMillis = reportPeriodMillis;
+        return this;
+    }
+
+    /**
+     * Returns the metrics of this service, if enabled.
+     * 
+     * @return the metrics, or null if metrics are not enabled or the service has not been started
+     */
+    public FeatureSwitchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the maximum number of feature switches to keep watched. When there are more, the least recently used feature
+     * switches have their watches removed, and are loaded again on their next lookup. Bound feature switches are never
+     * removed. Use 0 for no maximum. This can not be combined with preload or the namespace tree watch, which watch every
+     * feature switch.
+     * <P>
+     * Zookeeper 3.4 can not remove a watch, so the watches of an evicted feature switch stay set on the server until its nodes
+     * next change. They are reused if the feature switch is looked up again before then.
+     * <P>
+     * Default: 0 (no maximum)
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param maxFeatureSwitches
+     *            the maximum number of feature switches
+     * @return this service
+     */
+    public ZKFeatureSwitchService setMaxFeatureSwitches(int maxFeatureSwitches) {
+        ensureServiceIsNotRunning();
+        this.maxFeatureSwitches = maxFeatureSwitches;
+        return this;
+    }
+
+    /**
+     * Set how long (in millis) a feature switch stays watched without being looked up. Idle feature switches have their watches
+     * removed, and are loaded again on their next lookup. Bound feature switches are never removed. Use 0 to keep feature
+     * switches regardless of use. This can not be combined with preload or the namespace tree watch.
+     * <P>
+     * Default: 0
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param featureSwitchIdleTimeoutMillis
+     *            the idle time (in millis) before a feature switch is removed
+     * @return this service
+     */
+    public ZKFeatureSwitchService setFeatureSwitchIdleTimeoutMillis(long featureSwitchIdleTimeoutMillis) {
+        ensureServiceIsNotRunning();
+        this.featureSwitchIdleTimeoutMillis = featureSwitchIdleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Never wait on Zookeeper in a lookup. The first lookup of a feature switch returns the default (see
+     * setUnknownFeatureSwitchDefault(), or the default passed to the lookup) straight away and sets up the feature switch in
+     * the background; use isEnabledAsync() to wait for it. Off by default, i.e. the first lookup of a feature switch waits for
+     * its nodes to be read.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService enableNonBlockingLookup() {
+        ensureServiceIsNotRunning();
+        useNonBlockingLookup = true;
+        return this;
+    }
+
+    /**
+     * Disables non-blocking lookups. This is the default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService disableNonBlockingLookup() {
+        ensureServiceIsNotRunning();
+        useNonBlockingLookup = false;
+        return this;
+    }
+
+    /**
+     * Set the value of a feature switch that has not been loaded, i.e. on its first lookup with non-blocking lookups, or for
+     * a feature switch that does not exist with preload or the namespace tree watch.
+     * <P>
+     * Default: false
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param unknownFeatureSwitchDefault
+     *            the value of a feature switch that has not been loaded
+     * @return this service
+     */
+    public ZKFeatureSwitchService setUnknownFeatureSwitchDefault(boolean unknownFeatureSwitchDefault) {
+        ensureServiceIsNotRunning();
+        this.unknownFeatureSwitchDefault = unknownFeatureSwitchDefault;
+        return this;
+    }
+
+    /**
+     * Set the maximum time (in millis) to wait before reloading the feature switches after the Zookeeper session expired. The
+     * actual wait is random, up to this maximum, so that services which lost their sessions together (e.g. when the ensemble
+     * was unavailable) do not all reload at once. Use 0 to reload straight away.
+     * <P>
+     * Default: 5000 ms
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param resyncJitterMillis
+     *            the maximum time (in millis) to wait
+     * @return this service
+     */
+    public ZKFeatureSwitchService setResyncJitterMillis(long resyncJitterMillis) {
+        ensureServiceIsNotRunning();
+        this.resyncJitterMillis = resyncJitterMillis;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of nodes read per second when reloading the feature switches after the Zookeeper session
+     * expired. Use 0 for no limit.
+     * <P>
+     * Default: 500
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param resyncReadsPerSecond
+     *            the maximum number of nodes read per second
+     * @return this service
+     */
+    public ZKFeatureSwitchService setResyncRateLimit(int resyncReadsPerSecond) {
+        ensureServiceIsNotRunning();
+        this.resyncReadsPerSecond = resyncReadsPerSecond;
+        return this;
+    }
+
+    /**
+     * Share node watches (and the CuratorFramework) with the other services in this JVM that enable shared watches with the
+     * same connect string, or the same CuratorFramework if one is set. A node is then watched once, however many services
+     * (e.g. with different application names) look it up, and each service resolves it into its own feature switches. The
+     * first service to start creates the shared CuratorFramework and the last one to stop closes it. Off by default.
+     * <P>
+     * Only the node watches of feature switches that are looked up (including those set up by preload) are shared, the
+     * namespace tree watch is not.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService enableSharedWatches() {
+        ensureServiceIsNotRunning();
+        useSharedWatches = true;
+        return this;
+    }
+
+    /**
+     * Disables shared watches. This is the default.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService disableSharedWatches() {
+        ensureServiceIsNotRunning();
+        useSharedWatches = false;
+        return this;
+    }
+
+    /**
+     * Set the backend supplying the feature switch node values, e.g. an InMemoryFeatureSwitchBackend for tests or a
+     * FileFeatureSwitchBackend where Zookeeper can not be reached. Feature switches are resolved and looked up the same way
+     * whatever the backend. Set this to null (the default) to use Zookeeper.
+     * <P>
+     * With any other backend no CuratorFramework is used, the values are never stale, and preload, the namespace tree watch and
+     * shared watches (which read Zookeeper directly) can not be used.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param backend
+     *            the backend, or null for Zookeeper
+     * @return this service
+     */
+    public ZKFeatureSwitchService setBackend(FeatureSwitchBackend backend) {
+        ensureServiceIsNotRunning();
+        this.configuredBackend = backend;
+        return this;
+    }
+
+    /**
+     * Set the executor that applies node changes, i.e. decodes the new values and resolves the feature switches. By default
+     * the service applies changes from Zookeeper on a thread of its own, so that a burst of feature switch changes does not
+     * hold up Curator's event thread (and the other recipes using the CuratorFramework), and changes from any other backend
+     * on the thread notifying them.
+     * <P>
+     * Changes are queued for the executor, which applies them in batches. A node that changes again before its change is
+     * applied stays queued once, with its latest value, so under a high rate of updates only the latest value of each node is
+     * decoded. The service runs at most one task on the executor at a time, so any executor will do, e.g. a pool shared with
+     * other work, or Executors.newVirtualThreadPerTaskExecutor() on Java 21. The executor is not shut down by the service.
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param watchEventExecutor
+     *            executor to apply node changes with, or null for the default
+     * @return this service
+     */
+    public ZKFeatureSwitchService setWatchEventExecutor(Executor watchEventExecutor) {
+        ensureServiceIsNotRunning();
+        this.configuredWatchEventExecutor = watchEventExecutor;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of nodes with changes queued for the watch event executor (see setWatchEventExecutor()). While
+     * the queue is full, changes to other nodes are applied on the thread notifying them.
+     * <P>
+     * Default: 10000
+     * <P>
+     * NOTE: Service must not be running.
+     * 
+     * @param watchEventQueueCapacity
+     *            the maximum number of nodes with queued changes
+     * @return this service
+     */
+    public ZKFeatureSwitchService setWatchEventQueueCapacity(int watchEventQueueCapacity) {
+        ensureServiceIsNotRunning();
+        this.watchEventQueueCapacity = watchEventQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Returns whether the feature switch values may be out of date, i.e. the connection to Zookeeper is down, or the values
+     * are still being (re)loaded after the session expired or from a snapshot. Lookups keep returning the last known values
+     * either way.
+     * 
+     * @return true if the values may be out of date, false if they are up to date with Zookeeper
+     */
+    public boolean isStale() {
+        return disconnected || resyncing;
+    }
+
+    /**
+     * Returns whether reads are served by the local read endpoint (see setLocalReadConnectString()), rather than the ensemble.
+     * 
+     * @return true if connecting to the local read endpoint
+     */
+    public boolean isReadingLocally() {
+        String connectString = readConnectString;
+        return connectString != null && connectString.equals(localReadConnectString);
+    }
+
+    /**
+     * Add a listener for changes to any feature switch.
+     * 
+     * @param listener
+     *            the listener
+     * @return this service
+     */
+    public ZKFeatureSwitchService addListener(FeatureSwitchListener listener) {
+        listeners.add(new ListenerRegistration(listener, null, null));
+        return this;
+    }
+
+    /**
+     * Add a listener for changes to a feature switch. Note that a feature switch is only watched once it has been looked up
+     * (or bound), unless it is preloaded.
+     * 
+     * @param key
+     *            Feature switch key value.
+     * @param listener
+     *            the listener
+     * @return this service
+     */
+    public ZKFeatureSwitchService addListener(String key, FeatureSwitchListener listener) {
+        listeners.add(new ListenerRegistration(listener, key, null));
+        return this;
+    }
+
+    /**
+     * Add a listener for changes to feature switches with keys starting with a prefix.
+     * 
+     * @param keyPrefix
+     *            Feature switch key prefix.
+     * @param listener
+     *            the listener
+     * @return this service
+     */
+    public ZKFeatureSwitchService addPrefixListener(String keyPrefix, FeatureSwitchListener listener) {
+        listeners.add(new ListenerRegistration(listener, null, keyPrefix));
+        return this;
+    }
+
+    /**
+     * Remove every registration of a listener.
+     * 
+     * @param listener
+     *            the listener
+     * @return this service
+     */
+    public ZKFeatureSwitchService removeListener(FeatureSwitchListener listener) {
+        for (ListenerRegistration registration : listeners) {
+            if (registration.listener == listener) {
+                listeners.remove(registration);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Start this service. Must be called before any use of isEnabled(). Should be called after all configuration details have
+     * been set.
+     * 
+     * @return this service
+     */
+    public ZKFeatureSwitchService start() {
+        if (running) {
+            return this;
+        }
+        if (isEvictionEnabled() && isWholeNamespaceLoaded()) {
+            throw new IllegalStateException(
+                    "Feature switch eviction can not be combined with preload, namespace tree watch or manifest");
+        }
+        if (useManifest && (useNamespaceTreeWatch || usePreload)) {
+            throw new IllegalStateException("Manifest can not be combined with preload or namespace tree watch");
+        }
+        if (!lowerPrecedenceNamespaces.isEmpty() && isWholeNamespaceLoaded()) {
+            throw new IllegalStateException("Preload, namespace tree watch and manifest can only be used with a single namespace");
+        }
+        List<String> namespaces = featureSwitchNamespaces();
+        if (new HashSet<String>(namespaces).size() < namespaces.size()) {
+            throw new IllegalStateException("Feature switch namespaces must be distinct: " + namespaces);
+        }
+        if (configuredBackend != null && (isWholeNamespaceLoaded() || useSharedWatches || client != null)) {
+            throw new IllegalStateException("Preload, namespace tree watch, manifest, shared watches and a CuratorFramework "
+                    + "can only be used with Zookeeper");
+        }
+        if (localReadConnectString != null
+                && (configuredBackend != null || useSharedWatches || client != null || isWholeNamespaceLoaded())) {
+            throw new IllegalStateException("A local read endpoint can only be used with a CuratorFramework created by the "
+                    + "service and a watch per feature switch");
+        }
+        int dimensions = (applicationName != null ? 1 : 0) + (useHostnameSubKey ? 1 : 0) + overrideDimensions.size();
+        if (dimensions > MAX_OVERRIDE_DIMENSIONS) {
+            throw new IllegalStateException("At most " + MAX_OVERRIDE_DIMENSIONS
+                    + " override dimensions can be used, including the application name and hostname");
+        }
+        if (configuredBackend != null) {
+            backend = configuredBackend;
+        } else if (useSharedWatches) {
+            watchRegistry =
+                    client == null ? SharedWatchRegistry.acquire(connectString, retryPolicy, connectionTimeoutMillis)
+                            : SharedWatchRegistry.acquire(client);
+            client = watchRegistry.getClient();
+        } else if (client == null) {
+            client = newClient(connectString);
+            if (localReadConnectString != null) {
+                localReadEndpoint =
+                        new LocalReadEndpoint(connectString, localReadConnectString, localReadMaxLag, localReadTimeoutMillis());
+                localReadEndpoint.start();
+                readConnectString = localReadEndpoint.getConnectionString();
+                if (localReadEndpoint.isUsingLocal()) {
+                    readClient = newClient(readConnectString);
+                }
+            }
+        }
+        if (readClient == null) {
+            readClient = client;
+        }
+        if (client != null) {
+            backend = new CuratorFeatureSwitchBackend(readClient, watchRegistry, backendNamespace());
+        }
+        try {
+            backend.start();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        if (useHostnameSubKey) {
+            try {
+                hostname = java.net.InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        buildResolutionPlan();
+        backgroundExecutor = ThreadUtils.newSingleThreadScheduledExecutor("zkfss");
+        notificationExecutor = ThreadUtils.newSingleThreadScheduledExecutor("zkfss-listener");
+        if (configuredWatchEventExecutor != null) {
+            watchEventExecutor = configuredWatchEventExecutor;
+        } else if (client != null) {
+            ownWatchEventExecutor = ThreadUtils.newSingleThreadExecutor("zkfss-watch");
+            watchEventExecutor = ownWatchEventExecutor;
+        } else {
+            watchEventExecutor = null;
+        }
+        watchEventDrainScheduled.set(false);
+        if (localReadEndpoint != null) {
+            backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    checkLocalRead();
+                }
+            }, localReadCheckMillis, localReadCheckMillis, TimeUnit.MILLISECONDS);
+        }
+        startMetrics();
+        final Map<String, Boolean> snapshotValues = loadSnapshot();
+
+        resyncing = snapshotValues != null;
+        if (client != null) {
+            disconnected = !readClient.getZookeeperClient().isConnected();
+            sessionId = currentSessionId();
+            readClient.getConnectionStateListenable().addListener(connectionStateListener);
+        }
+        synchronized (lock) {
+            currentSnapshot = newSnapshot();
+        }
+        running = true;
+
+        // with values from a snapshot there is no need to wait for Zookeeper
+        long startupWaitMillis = snapshotValues == null ? preloadTimeoutMillis : 0;
+        final Collection<String> snapshotKeys =
+                snapshotValues == null ? Collections.<String> emptySet() : snapshotValues.keySet();
+        if (useManifest) {
+            startManifestWatch(snapshotKeys, startupWaitMillis);
+        } else if (useNamespaceTreeWatch) {
+            startNamespaceTreeWatch(snapshotKeys, startupWaitMillis);
+        } else if (usePreload) {
+            awaitPreload(backgroundExecutor.submit(new Callable<Void>() {
+
+                public Void call() throws Exception {
+                    preloadFeatureSwitches(snapshotKeys);
+                    return null;
+                }
+            }), startupWaitMillis);
+        } else if (!snapshotKeys.isEmpty()) {
+            setupFeatureSwitches(new ArrayList<String>(snapshotKeys), 0);
+        }
+
+        if (isEvictionEnabled()) {
+            long sweepMillis = featureSwitchIdleTimeoutMillis > 0 ? featureSwitchIdleTimeoutMillis / 2 : DEFAULT_EVICTION_SWEEP_MILLIS;
+            backgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    evictFeatureSwitches();
+                }
+            }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return a started CuratorFramework connected to the given servers (overridden by tests)
+     */
+    CuratorFramework newClient(String clientConnectString) {
+        CuratorFramework newClient =
+                CuratorFrameworkFactory.builder().connectString(clientConnectString).retryPolicy(retryPolicy)
+                        .connectionTimeoutMs(connectionTimeoutMillis).build();
+        newClient.start();
+        return newClient;
+    }
+
+    /**
+     * @return the namespace the Curator backend names nodes from
+     */
+    private String backendNamespace() {
+        return lowerPrecedenceNamespaces.isEmpty() ? featureSwitchNamespace : "/";
+    }
+
+    private int localReadTimeoutMillis() {
+        return (int) Math.min(connectionTimeoutMillis, localReadCheckMillis);
+    }
+
+    private boolean isEvictionEnabled() {
+        return maxFeatureSwitches > 0 || featureSwitchIdleTimeoutMillis > 0;
+    }
+
+    /**
+     * @return true if every feature switch in the namespace is loaded (and watched) without being looked up
+     */
+    private boolean isWholeNamespaceLoaded() {
+        return useNamespaceTreeWatch || usePreload || useManifest;
+    }
+
+    private void startMetrics() {
+        if (!useMetrics) {
+            metrics = null;
+            return;
+        }
+        metrics = new FeatureSwitchMetrics(overrideLevelNames);
+        try {
+            String name = "com.wotifgroup.zkfss:type=FeatureSwitchMetrics,namespace=" + ObjectName.quote(featureSwitchNamespace);
+            if (applicationName != null) {
+                name += ",application=" + ObjectName.quote(applicationName);
+            }
+            metricsObjectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsObjectName);
+        } catch (JMException e) {
+            LOG.warn("Unable to register feature switch metrics with JMX", e);
+            metricsObjectName = null;
+        }
+        if (metricsReporter != null) {
+            notificationExecutor.scheduleAtFixedRate(new Runnable() {
+
+                public void run() {
+                    try {
+                        metricsReporter.report(metrics);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Feature switch metrics reporter failed", e);
+                    }
+                }
+            }, metricsReportPeriodMillis, metricsReportPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Map<String, Boolean> loadSnapshot() {
+        if (snapshotFile == null) {
+            snapshotStore = null;
+            return null;
+        }
+        snapshotStore = new SnapshotFile(snapshotFile);
+        try {
+            Map<String, Boolean> values = snapshotStore.read();
+            if (values != null) {
+                HashMap<String, FeatureSwitchEntry> newFeatureSwitches = new HashMap<String, FeatureSwitchEntry>();
+                synchronized (lock) {
+                    for (Map.Entry<String, Boolean> value : values.entrySet()) {
+                        newFeatureSwitches.put(value.getKey(), newFeatureSwitchEntry(value.getKey(),
+                                value.getValue() ? FeatureSwitchRule.TRUE : FeatureSwitchRule.FALSE, FeatureSwitchValue.NONE));
+                    }
+                    featureSwitches = newFeatureSwitches;
+                }
+            }
+            return values;
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable feature switch snapshot " + snapshotFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets up feature switches one by one in the background, e.g. those loaded from the snapshot, retrying until Zookeeper is
+     * available. The resync is over once they are all set up.
+     */
+    private void setupFeatureSwitches(final List<String> keys, long delayMillis) {
+        if (!running) {
+            return;
+        }
+        backgroundExecutor.schedule(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < keys.size() && running; i++) {
+                    try {
+                        setupFeatureSwitch(keys.get(i));
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to set up feature switches from Zookeeper, will retry", e);
+                        setupFeatureSwitches(keys.subList(i, keys.size()), SNAPSHOT_RECONCILE_RETRY_MILLIS);
+                        return;
+                    }
+                }
+                resyncCompleted();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitPreload(Future<?> preload, long timeoutMillis) {
+        try {
+            preload.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // carry on loading in the background
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            stop();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Builds the resolution plan: the path suffix and level name of every combination of the override dimensions, most
+     * specific first. A combination outranks another if it has the first dimension where they differ, which keeps the original
+     * order of application and host, then application, then host, then the base node. With several namespaces, every level
+     * of a namespace outranks those of the namespaces below it.
+     */
+    private void buildResolutionPlan() {
+        List<String> dimensionNames = new ArrayList<String>();
+        List<String> dimensionValues = new ArrayList<String>();
+        if (applicationName != null) {
+            dimensionNames.add("application");
+            dimensionValues.add(applicationName);
+        }
+        if (useHostnameSubKey) {
+            dimensionNames.add("host");
+            dimensionValues.add(hostname);
+        }
+        for (Map.Entry<String, String> dimension : overrideDimensions.entrySet()) {
+            dimensionNames.add(dimension.getKey());
+            dimensionValues.add(dimension.getValue());
+        }
+
+        int dimensions = dimensionNames.size();
+        overridePathSuffixes = new String[1 << dimensions];
+        overrideLevelNames = new String[1 << dimensions];
+        overrideLevelsBySuffix = new HashMap<String, Integer>();
+        for (int level = 0; level < overridePathSuffixes.length; level++) {
+            int combination = overridePathSuffixes.length - 1 - level; // bit (dimensions - 1 - i) set for dimension i
+            StringBuilder suffix = new StringBuilder();
+            StringBuilder levelName = new StringBuilder();
+            for (int i = 0; i < dimensions; i++) {
+                if ((combination & (1 << (dimensions - 1 - i))) != 0) {
+                    suffix.append('/').append(dimensionValues.get(i));
+                    String name = dimensionNames.get(i);
+                    levelName.append(levelName.length() == 0 ? name : Character.toUpperCase(name.charAt(0))
+                            + name.substring(1));
+                }
+            }
+            overridePathSuffixes[level] = suffix.toString();
+            overrideLevelNames[level] = levelName.length() == 0 ? "base" : levelName.toString();
+            overrideLevelsBySuffix.put(overridePathSuffixes[level], level);
+        }
+
+        levelNodePrefixes = new String[overridePathSuffixes.length];
+        Arrays.fill(levelNodePrefixes, "");
+        if (!lowerPrecedenceNamespaces.isEmpty()) {
+            List<String> namespaces = featureSwitchNamespaces();
+            int overrideLevels = overridePathSuffixes.length;
+            String[] suffixes = new String[namespaces.size() * overrideLevels];
+            String[] levelNames = new String[suffixes.length];
+            levelNodePrefixes = new String[suffixes.length];
+            for (int level = 0; level < suffixes.length; level++) {
+                String namespace = namespaces.get(level / overrideLevels);
+                suffixes[level] = overridePathSuffixes[level % overrideLevels];
+                levelNames[level] = namespace + overrideLevelNames[level % overrideLevels];
+                levelNodePrefixes[level] = namespace.substring(1);
+            }
+            overridePathSuffixes = suffixes;
+            overrideLevelNames = levelNames;
+        }
+    }
+
+    private void ensureServiceIsNotRunning() {
+        if (running) {
+            throw new IllegalStateException("Configuration changes to running ZKFeatureSwitchService are not allowed!");
+        }
+    }
+
+    /**
+     * Stop the service. This will close the CuratorFramework (with shared watches, once the last service sharing it stops).
+     */
+    public void stop() {
+        running = false;
+        if (client != null) {
+            readClient.getConnectionStateListenable().removeListener(connectionStateListener);
+        }
+        backgroundExecutor.shutdownNow();
+        notificationExecutor.shutdownNow();
+        if (ownWatchEventExecutor != null) {
+            ownWatchEventExecutor.shutdownNow();
+            ownWatchEventExecutor = null;
+        }
+        watchEventExecutor = null;
+        queuedWatchEvents.clear();
+        queuedWatchEventCount.set(0);
+        watchEventCompletions.clear();
+        if (metricsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+            } catch (JMException e) {
+                LOG.warn("Unable to unregister feature switch metrics from JMX", e);
+            }
+            metricsObjectName = null;
+        }
+        if (snapshotWritePending.getAndSet(false)) {
+            writeSnapshot();
+        }
+        if (treeCache != null) {
+            treeCache.close();
+            treeCache = null;
+        }
+        if (manifestWatch != null) {
+            manifestWatch.close();
+            manifestWatch = null;
+        }
+        synchronized (lock) {
+            if (namespaceChildrenCache != null) {
+                closeQuietly(namespaceChildrenCache);
+                namespaceChildrenCache = null;
+            }
+            for (FeatureSwitchNodes nodes : featureSwitchNodes.values()) {
+                closeNodeWatches(nodes);
+            }
+            featureSwitchNodes.clear();
+            manifest = null;
+            manifestNodes = Collections.emptyMap();
+            pendingChanges.clear();
+            for (CompletableFuture<FeatureSwitchEntry> setup : pendingSetups.values()) {
+                setup.completeExceptionally(new IllegalStateException("ZKFeatureSwitchService stopped"));
+            }
+            pendingSetups.clear();
+            featureSwitches = new HashMap<String, FeatureSwitchEntry>();
+            resolvedValues = new ResolvedValueTable();
+            currentSnapshot = null;
+        }
+        backend.close();
+        backend = null;
+        if (readClient != client) {
+            readClient.close();
+        }
+        readClient = null;
+        if (watchRegistry != null) {
+            watchRegistry.release();
+            watchRegistry = null;
+        } else if (client != null) {
+            client.close();
+        }
+        client = null;
+        localReadEndpoint = null;
+        readConnectString = null;
+    }
+
+    public boolean isEnabled(String key) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry != null ? entry.enabled : unknownFeatureSwitchDefault;
+    }
+
+    public boolean isEnabled(String key, boolean defaultValue) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry != null ? entry.enabled : defaultValue;
+    }
+
+    public boolean isEnabled(String key, String contextId) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry != null ? entry.rule.isEnabled(contextId) : unknownFeatureSwitchDefault;
+    }
+
+    public CompletableFuture<Boolean> isEnabledAsync(String key) {
+        FeatureSwitchEntry entry = lookupLoaded(key);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry.enabled);
+        }
+        if (isWholeNamespaceLoaded()) {
+            return CompletableFuture.completedFuture(unknownFeatureSwitchDefault);
+        }
+        return setupFeatureSwitchInBackground(key).thenApply(ENABLED);
+    }
+
+    /**
+     * @return the feature switch, set up on its first lookup, or null for an unknown feature switch with the whole namespace
+     *         watched, or one being set up in the background
+     */
+    private FeatureSwitchEntry lookup(String key) {
+        FeatureSwitchEntry entry = lookupLoaded(key);
+        if (entry != null || isWholeNamespaceLoaded()) {
+            // every existing feature switch is already in the table (or on its way there)
+            return entry;
+        }
+
+        if (useNonBlockingLookup) {
+            setupFeatureSwitchInBackground(key);
+            return null;
+        }
+
+        // first lookup for this key - create watches on all its nodes
+        if (metrics == null) {
+            return setupFeatureSwitch(key);
+        }
+        long start = System.nanoTime();
+        entry = setupFeatureSwitch(key);
+        metrics.recordWatchSetup(System.nanoTime() - start);
+        return entry;
+    }
+
+    /**
+     * @return the feature switch, or null if it has not been loaded
+     */
+    private FeatureSwitchEntry lookupLoaded(String key) {
+
+        if (!running) {
+            throw new IllegalStateException("ZKFeatureSwitchService not running!");
+        }
+
+        FeatureSwitchEntry entry = featureSwitches.get(key);
+        if (entry != null) {
+            // only written once per eviction sweep, so hot feature switches don't bounce the cache line between threads
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            if (entry.metrics != null) {
+                entry.metrics.recordLookup();
+            }
+            return entry;
+        }
+
+        if (metrics != null) {
+            metrics.recordLookupMiss();
+        }
+        return null;
+    }
+
+    /**
+     * Sets up a feature switch on the background executor, unless it is already being set up.
+     */
+    private CompletableFuture<FeatureSwitchEntry> setupFeatureSwitchInBackground(final String key) {
+        synchronized (lock) {
+            CompletableFuture<FeatureSwitchEntry> setup = pendingSetups.get(key);
+            if (setup != null) {
+                return setup;
+            }
+            final CompletableFuture<FeatureSwitchEntry> newSetup = new CompletableFuture<FeatureSwitchEntry>();
+            if (!running) {
+                newSetup.completeExceptionally(new IllegalStateException("ZKFeatureSwitchService not running!"));
+                return newSetup;
+            }
+            pendingSetups.put(key, newSetup);
+            backgroundExecutor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        long start = System.nanoTime();
+                        FeatureSwitchEntry entry = setupFeatureSwitch(key);
+                        if (metrics != null) {
+                            metrics.recordWatchSetup(System.nanoTime() - start);
+                        }
+                        removePendingSetup(key);
+                        newSetup.complete(entry);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to set up feature switch " + key, e);
+                        removePendingSetup(key);
+                        newSetup.completeExceptionally(e);
+                    }
+                }
+            });
+            return newSetup;
+        }
+    }
+
+    private void removePendingSetup(String key) {
+        synchronized (lock) {
+            pendingSetups.remove(key);
+        }
+    }
+
+    /**
+     * Starts loading a feature switch that was checked through a snapshot before it was loaded, so later snapshots have it.
+     */
+    private void snapshotMiss(String key) {
+        if (metrics != null) {
+            metrics.recordLookupMiss();
+        }
+        if (!running || featureSwitches.containsKey(key)) {
+            return;
+        }
+        try {
+            setupFeatureSwitchInBackground(key);
+        } catch (RejectedExecutionException e) {
+            // stopped in the meantime
+        }
+    }
+
+    /**
+     * Returns the value of a feature switch node as an int. Typed values follow the same override precedence as boolean
+     * values, skipping nodes whose value is not of the type.
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @param defaultValue value to return if no node holds an int
+     * @return the value
+     */
+    public int getInt(String key, int defaultValue) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry == null ? defaultValue : entry.value.getInt(defaultValue);
+    }
+
+    /**
+     * Returns the value of a feature switch node as a long (see getInt()).
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @param defaultValue value to return if no node holds a long
+     * @return the value
+     */
+    public long getLong(String key, long defaultValue) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry == null ? defaultValue : entry.value.getLong(defaultValue);
+    }
+
+    /**
+     * Returns the value of a feature switch node as a double (see getInt()).
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @param defaultValue value to return if no node holds a number
+     * @return the value
+     */
+    public double getDouble(String key, double defaultValue) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry == null ? defaultValue : entry.value.getDouble(defaultValue);
+    }
+
+    /**
+     * Returns the value of a feature switch node as a string (see getInt()).
+     * 
+     * @param key Feature switch key value (see isEnabled() for the rules).
+     * @param defaultValue value to return if no node holds a value
+     * @return the value
+     */
+    public String getString(String key, String defaultValue) {
+        FeatureSwitchEntry entry = lookup(key);
+        return entry == null ? defaultValue : entry.value.getString(defaultValue);
+    }
+
+    public FeatureSwitch bind(String key) {
+        while (true) {
+            if (!running) {
+                throw new IllegalStateException("ZKFeatureSwitchService not running!");
+            }
+            if (featureSwitches.get(key) == null && !isWholeNamespaceLoaded()) {
+                setupFeatureSwitch(key); // feature switches watched per key are set up here, even with non-blocking lookups
+            }
+            synchronized (lock) {
+                if (!running) {
+                    throw new IllegalStateException("ZKFeatureSwitchService not running!");
+                }
+                FeatureSwitchEntry entry = featureSwitches.get(key);
+                if (entry == null && isWholeNamespaceLoaded()) {
+                    // an unknown feature switch with the whole namespace watched - add it so it is updated if it is created
+                    publishResolvedValues(Collections.singleton(key));
+                    entry = featureSwitches.get(key);
+                }
+                if (entry != null) {
+                    entry.bound = true;
+                    return entry;
+                }
+            }
+            // evicted before it could be bound - set it up again
+        }
+    }
+
+    public <E extends Enum<E>> FeatureSwitchSet<E> bind(Class<E> switches) {
+        return new FeatureSwitchSet<E>(switches, this);
+    }
+
+    /**
+     * Returns an immutable view of the current feature switch values, so that several feature switches can be checked
+     * consistently. A snapshot is built whenever the values change, so taking one is a single field read. A feature switch
+     * checked through a snapshot before it has been loaded has the default for unknown feature switches, and is loaded in the
+     * background.
+     * 
+     * @return the snapshot
+     */
+    public FeatureSwitchSnapshot snapshot() {
+        Snapshot s = currentSnapshot;
+        if (!running || s == null) {
+            throw new IllegalStateException("ZKFeatureSwitchService not running!");
+        }
+        return s;
+    }
+
+    /**
+     * Watches the nodes of a feature switch that are not watched yet and publishes its value. The nodes are read without
+     * holding the lock, so a slow Zookeeper only holds up the lookups of this feature switch. If several threads set up the
+     * same feature switch at once, the first watch of each node is kept and the others are closed.
+     */
+    private FeatureSwitchEntry setupFeatureSwitch(String key) {
+        while (true) {
+            FeatureSwitchNodes nodes;
+            FeatureSwitchBackend nodeBackend;
+            List<Integer> levels = new ArrayList<Integer>();
+            synchronized (lock) {
+                if (!running) {
+                    throw new IllegalStateException("ZKFeatureSwitchService not running!");
+                }
+                nodes = featureSwitchNodes(key);
+                for (int level = 0; level < overridePathSuffixes.length; level++) {
+                    if (nodes.watches == null || nodes.watches[level] == null) {
+                        levels.add(level);
+                    }
+                }
+                if (levels.isEmpty()) {
+                    return publishResolvedValue(key);
+                }
+                nodeBackend = backend;
+            }
+
+            NodeListener[] listeners = new NodeListener[levels.size()];
+            FeatureSwitchBackend.Watch[] watches = new FeatureSwitchBackend.Watch[levels.size()];
+            try {
+                for (int i = 0; i < watches.length; i++) {
+                    int level = levels.get(i);
+                    listeners[i] = new NodeListener(key, nodes, level);
+                    watches[i] = nodeBackend.watch(levelNodePrefixes[level] + key + overridePathSuffixes[level], listeners[i]);
+                }
+            } catch (Exception e) {
+                closeWatches(watches);
+                synchronized (lock) {
+                    if (running && backend != nodeBackend) {
+                        continue; // the reads moved to another endpoint, and the old client was closed
+                    }
+                }
+                throw new RuntimeException(e);
+            }
+
+            synchronized (lock) {
+                if (!running || featureSwitchNodes.get(key) != nodes || backend != nodeBackend) {
+                    // stopped, evicted, or moved to another endpoint (see checkLocalRead()) in the meantime
+                    closeWatches(watches);
+                    if (!running) {
+                        throw new IllegalStateException("ZKFeatureSwitchService not running!");
+                    }
+                    continue;
+                }
+                addNodeWatches(key, nodes, levels, watches, listeners);
+                return publishResolvedValue(key);
+            }
+        }
+    }
+
+    /**
+     * @return the nodes of a feature switch, added if need be. Must be called holding the lock.
+     */
+    private FeatureSwitchNodes featureSwitchNodes(String key) {
+        FeatureSwitchNodes nodes = featureSwitchNodes.get(key);
+        if (nodes == null) {
+            nodes = new FeatureSwitchNodes(overridePathSuffixes.length);
+            featureSwitchNodes.put(key, nodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * Adds the watches of the given levels of a feature switch, closing those of levels set up by another thread in the
+     * meantime. Must be called holding the lock.
+     */
+    private void addNodeWatches(String key, FeatureSwitchNodes nodes, List<Integer> levels,
+            FeatureSwitchBackend.Watch[] watches, NodeListener[] listeners) {
+        for (int i = 0; i < watches.length; i++) {
+            int level = levels.get(i);
+            if (nodes.watches == null || nodes.watches[level] == null) {
+                addNodeWatch(key, nodes, level, watches[i], listeners[i]);
+            } else {
+                watches[i].close();
+            }
+        }
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private void addNodeWatch(String key, FeatureSwitchNodes nodes, int level, FeatureSwitchBackend.Watch watch,
+            NodeListener listener) {
+        if (nodes.watches == null) {
+            nodes.watches = new FeatureSwitchBackend.Watch[overridePathSuffixes.length];
+            nodes.listeners = new FeatureSwitchBackend.Listener[overridePathSuffixes.length];
+        }
+        nodes.watches[level] = watch;
+        nodes.listeners[level] = listener;
+        nodeWatchCount++;
+        if (metrics != null) {
+            metrics.watchAdded();
+        }
+
+        // ensure the current value is setup if it's set - read now, as changes notified before the listener was added are
+        // ignored
+        nodes.values[level] = parseValue(key, watch.getData());
+    }
+
+    private static void closeWatches(FeatureSwitchBackend.Watch[] watches) {
+        for (FeatureSwitchBackend.Watch watch : watches) {
+            if (watch != null) {
+                watch.close();
+            }
+        }
+    }
+
+    /**
+     * Applies a node change straight away if there is no watch event executor, otherwise queues it unless the node is already
+     * queued, in which case the queued change is replaced by this one. If the queue is full the change is applied on this
+     * thread instead.
+     */
+    private void watchEventReceived(NodeListener listener, WatchEvent event) {
+        if (watchEventExecutor == null) {
+            applyWatchEvents(Collections.singletonList(listener), Collections.singletonList(event));
+            return;
+        }
+        if (PENDING_WATCH_EVENT.getAndSet(listener, event) != null) {
+            return; // already queued
+        }
+        if (queuedWatchEventCount.incrementAndGet() > watchEventQueueCapacity) {
+            queuedWatchEventCount.decrementAndGet();
+            WatchEvent latestEvent = PENDING_WATCH_EVENT.getAndSet(listener, null);
+            if (latestEvent != null) {
+                applyWatchEvents(Collections.singletonList(listener), Collections.singletonList(latestEvent));
+            }
+            return;
+        }
+        queuedWatchEvents.add(listener);
+        scheduleWatchEventDrain();
+    }
+
+    /**
+     * @return a callback running the given one once the node changes queued so far have been applied
+     */
+    private Runnable afterQueuedWatchEvents(final Runnable onComplete) {
+        if (watchEventExecutor == null) {
+            return onComplete;
+        }
+        return new Runnable() {
+
+            public void run() {
+                watchEventCompletions.add(onComplete);
+                scheduleWatchEventDrain();
+            }
+        };
+    }
+
+    private void scheduleWatchEventDrain() {
+        Executor executor = watchEventExecutor;
+        if (executor == null || !watchEventDrainScheduled.compareAndSet(false, true)) {
+            return; // stopped, or already scheduled
+        }
+        Runnable drain = new Runnable() {
+
+            public void run() {
+                drainWatchEvents();
+            }
+        };
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            if (running) {
+                drain.run(); // the executor is saturated - apply the changes on this thread
+            }
+        }
+    }
+
+    /**
+     * Applies the queued node changes in batches, then runs the completions that were waiting on them.
+     */
+    private void drainWatchEvents() {
+        while (true) {
+            // taken first, as every change a completion waits on was queued before it
+            List<Runnable> completions = new ArrayList<Runnable>();
+            for (Runnable completion = watchEventCompletions.poll(); completion != null; completion =
+                    watchEventCompletions.poll()) {
+                completions.add(completion);
+            }
+            List<NodeListener> batchListeners = new ArrayList<NodeListener>();
+            List<WatchEvent> batchEvents = new ArrayList<WatchEvent>();
+            for (NodeListener listener = queuedWatchEvents.poll(); listener != null; listener = queuedWatchEvents.poll()) {
+                queuedWatchEventCount.decrementAndGet();
+                WatchEvent event = PENDING_WATCH_EVENT.getAndSet(listener, null);
+                if (event != null) {
+                    batchListeners.add(listener);
+                    batchEvents.add(event);
+                }
+                if (batchListeners.size() >= WATCH_EVENT_BATCH_SIZE) {
+                    applyWatchEvents(batchListeners, batchEvents);
+                    batchListeners.clear();
+                    batchEvents.clear();
+                }
+            }
+            if (!batchListeners.isEmpty()) {
+                applyWatchEvents(batchListeners, batchEvents);
+            }
+            for (Runnable completion : completions) {
+                completion.run();
+            }
+
+            watchEventDrainScheduled.set(false);
+            if ((queuedWatchEvents.isEmpty() && watchEventCompletions.isEmpty()) || !running
+                    || !watchEventDrainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes node changes and resolves the changed feature switches, with at most a single copy of the lookup table.
+     */
+    private void applyWatchEvents(List<NodeListener> listeners, List<WatchEvent> events) {
+        NodeValue[] values = new NodeValue[events.size()];
+        for (int i = 0; i < values.length; i++) {
+            WatchEvent event = events.get(i);
+            if (metrics != null) {
+                metrics.recordUpdate(event.modifiedMillis);
+            }
+            values[i] = parseValue(listeners.get(i).key, event.data);
+        }
+        synchronized (lock) {
+            Set<String> keys = new LinkedHashSet<String>();
+            for (int i = 0; i < values.length; i++) {
+                NodeListener listener = listeners.get(i);
+                FeatureSwitchNodes nodes = listener.nodes;
+                if (nodes.listeners == null || nodes.listeners[listener.level] != listener) {
+                    continue; // evicted
+                }
+                long sequence = events.get(i).sequence;
+                if (sequence < listener.appliedSequence) {
+                    continue; // a later change was applied on the notifying thread
+                }
+                listener.appliedSequence = sequence;
+                nodes.values[listener.level] = values[i];
+                keys.add(listener.key);
+            }
+            publishResolvedValues(keys);
+        }
+    }
+
+    /**
+     * Stops watching the nodes of a feature switch, guarded by the lock.
+     * 
+     * @return the number of nodes that were watched
+     */
+    private int closeNodeWatches(FeatureSwitchNodes nodes) {
+        if (nodes.watches == null) {
+            return 0;
+        }
+        int closed = 0;
+        for (FeatureSwitchBackend.Watch watch : nodes.watches) {
+            if (watch != null) {
+                watch.close();
+                closed++;
+            }
+        }
+        nodes.watches = null;
+        nodes.listeners = null;
+        nodeWatchCount -= closed;
+        return closed;
+    }
+
+    /**
+     * Watches every node of every feature switch in the namespace, the reads that set the watches pipelined in one batch, and
+     * publishes their values. Feature switches that could not be read in time are set up one by one in the background, as are
+     * feature switches created later, which a watch on the namespace picks up.
+     */
+    private void preloadFeatureSwitches(Collection<String> snapshotKeys) throws Exception {
+        List<String> keys;
+        try {
+            keys = client.getChildren().forPath(namespacePath());
+        } catch (KeeperException.NoNodeException e) {
+            keys = Collections.emptyList();
+        }
+
+        List<Integer> levels = new ArrayList<Integer>();
+        for (int level = 0; level < overridePathSuffixes.length; level++) {
+            levels.add(level);
+        }
+        FeatureSwitchNodes[] keyNodes = new FeatureSwitchNodes[keys.size()];
+        CuratorFeatureSwitchBackend curatorBackend;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            for (int i = 0; i < keyNodes.length; i++) {
+                keyNodes[i] = featureSwitchNodes(keys.get(i));
+            }
+            curatorBackend = (CuratorFeatureSwitchBackend) backend;
+        }
+
+        final CountDownLatch remaining = new CountDownLatch(keys.size() * levels.size());
+        final AtomicIntegerArray loadedLevels = new AtomicIntegerArray(keys.size());
+        final Set<String> failedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        FeatureSwitchBackend.Watch[][] watches = new FeatureSwitchBackend.Watch[keys.size()][levels.size()];
+        NodeListener[][] listeners = new NodeListener[keys.size()][levels.size()];
+        for (int i = 0; i < keyNodes.length; i++) {
+            final int index = i;
+            final String key = keys.get(i);
+            Runnable onLoaded = new Runnable() {
+
+                public void run() {
+                    loadedLevels.incrementAndGet(index);
+                    remaining.countDown();
+                }
+            };
+            Runnable onFailed = new Runnable() {
+
+                public void run() {
+                    failedKeys.add(key);
+                    remaining.countDown();
+                }
+            };
+            for (int level : levels) {
+                listeners[i][level] = new NodeListener(key, keyNodes[i], level);
+                watches[i][level] =
+                        curatorBackend.watchInBackground(levelNodePrefixes[level] + key + overridePathSuffixes[level],
+                                listeners[i][level], onLoaded, onFailed);
+            }
+        }
+
+        // only feature switches read at every override level are published, as a partial read could resolve a value from the
+        // wrong level
+        remaining.await(connectionTimeoutMillis, TimeUnit.MILLISECONDS);
+        List<String> retryKeys = new ArrayList<String>();
+        synchronized (lock) {
+            if (!running) {
+                for (FeatureSwitchBackend.Watch[] keyWatches : watches) {
+                    closeWatches(keyWatches);
+                }
+                return;
+            }
+            List<String> publishKeys = new ArrayList<String>();
+            for (int i = 0; i < keyNodes.length; i++) {
+                String key = keys.get(i);
+                if (failedKeys.contains(key) || loadedLevels.get(i) < levels.size()) {
+                    closeWatches(watches[i]);
+                    retryKeys.add(key);
+                } else {
+                    addNodeWatches(key, keyNodes[i], levels, watches[i], listeners[i]);
+                    publishKeys.add(key);
+                }
+            }
+            publishResolvedValues(publishKeys);
+            Set<String> missingKeys = new HashSet<String>(snapshotKeys);
+            missingKeys.removeAll(keys); // snapshot values for feature switches that no longer exist
+            removeMissingFeatureSwitches(missingKeys);
+        }
+        if (retryKeys.isEmpty()) {
+            resyncCompleted();
+        } else {
+            LOG.warn("Unable to preload " + retryKeys.size() + " feature switches from Zookeeper, setting them up one by one");
+            setupFeatureSwitches(retryKeys, 0);
+        }
+
+        final Set<String> preloadedKeys = new HashSet<String>(keys);
+        PathChildrenCache childrenCache = new PathChildrenCache(client, namespacePath(), false);
+        childrenCache.getListenable().addListener(new PathChildrenCacheListener() {
+
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+                if (running && event.getType() == PathChildrenCacheEvent.Type.CHILD_ADDED) {
+                    String key = featureSwitchKey(event.getData().getPath());
+                    if (!preloadedKeys.contains(key)) {
+                        setupFeatureSwitchInBackground(key);
+                    }
+                }
+            }
+        });
+        childrenCache.start();
+        synchronized (lock) {
+            if (running) {
+                namespaceChildrenCache = childrenCache;
+                if (metrics != null) {
+                    metrics.watchAdded();
+                }
+            } else {
+                closeQuietly(childrenCache);
+            }
+        }
+    }
+
+    private String namespacePath() {
+        return featureSwitchNamespace.substring(0, featureSwitchNamespace.length() - 1);
+    }
+
+    private void startNamespaceTreeWatch(final Collection<String> snapshotKeys, long startupWaitMillis) {
+        final CountDownLatch initialized = new CountDownLatch(1);
+        treeCache = TreeCache.newBuilder(client, namespacePath()).setCacheData(false).setSelector(new TreeCacheSelector() {
+
+            public boolean traverseChildren(String fullPath) {
+                String suffix = overridePathSuffix(fullPath);
+                if (suffix == null) {
+                    return true; // namespace node
+                }
+                for (String overridePathSuffix : overridePathSuffixes) {
+                    if (overridePathSuffix.startsWith(suffix + "/")) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            public boolean acceptChild(String fullPath) {
+                String suffix = overridePathSuffix(fullPath);
+                for (String overridePathSuffix : overridePathSuffixes) {
+                    if (overridePathSuffix.equals(suffix)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }).build();
+
+        treeCache.getListenable().addListener(new TreeCacheListener() {
+
+            public void childEvent(CuratorFramework client, TreeCacheEvent event) throws Exception {
+                switch (event.getType()) {
+                    case NODE_ADDED:
+                        if (metrics != null) {
+                            metrics.watchAdded();
+                            if (initialized.getCount() == 0) {
+                                metrics.recordUpdate(event.getData().getStat());
+                            }
+                        }
+                        treeNodeChanged(event.getData().getPath(), event.getData());
+                        break;
+                    case NODE_UPDATED:
+                        if (metrics != null) {
+                            metrics.recordUpdate(event.getData().getStat());
+                        }
+                        treeNodeChanged(event.getData().getPath(), event.getData());
+                        break;
+                    case NODE_REMOVED:
+                        if (metrics != null) {
+                            metrics.watchRemoved();
+                            metrics.recordUpdate(null);
+                        }
+                        treeNodeChanged(event.getData().getPath(), null);
+                        break;
+                    case INITIALIZED:
+                        synchronized (lock) {
+                            // every existing node has been loaded, so drop any snapshot values that are out of date
+                            removeMissingFeatureSwitches(snapshotKeys);
+                        }
+                        resyncCompleted();
+                        initialized.countDown();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+
+        try {
+            treeCache.start();
+            initialized.await(startupWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads the manifest (waiting up to the startup wait) and watches it for changes.
+     */
+    private void startManifestWatch(final Collection<String> snapshotKeys, long startupWaitMillis) {
+        manifestLoadScheduled.set(false);
+        NodeWatch.Listener listener = new NodeWatch.Listener() {
+
+            public void nodeChanged(NodeWatch watch, ChildData data) {
+                if (metrics != null) {
+                    metrics.recordUpdate(data == null ? null : data.getStat());
+                }
+                scheduleManifestLoad();
+            }
+        };
+        manifestWatch =
+                new NodeWatch(client, FeatureSwitchManifest.path(featureSwitchNamespace),
+                        ((CuratorFeatureSwitchBackend) backend).getFailedRefreshes(), listener);
+        if (metrics != null) {
+            metrics.watchAdded();
+        }
+        final NodeWatch watch = manifestWatch;
+        awaitPreload(backgroundExecutor.submit(new Callable<Void>() {
+
+            public Void call() throws Exception {
+                try {
+                    watch.start();
+                    loadManifest(watch, snapshotKeys);
+                } catch (Exception e) {
+                    LOG.warn("Unable to load feature switch manifest, will retry", e);
+                    retryManifestLoad(watch, snapshotKeys);
+                }
+                return null;
+            }
+        }), startupWaitMillis);
+    }
+
+    /**
+     * Loads the manifest on the background executor after it changed, unless a load is already scheduled.
+     */
+    private void scheduleManifestLoad() {
+        if (!running || !manifestLoadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        backgroundExecutor.execute(new Runnable() {
+
+            public void run() {
+                manifestLoadScheduled.set(false);
+                NodeWatch watch = manifestWatch;
+                if (!running || watch == null) {
+                    return;
+                }
+                try {
+                    loadManifest(watch, Collections.<String> emptySet());
+                } catch (Exception e) {
+                    LOG.warn("Unable to load feature switch manifest, will retry", e);
+                    retryManifestLoad(watch, Collections.<String> emptySet());
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the manifest again (resetting its watch) and loads it after a delay, until it succeeds. Until then the values
+     * already loaded (or from the snapshot) are served.
+     */
+    private void retryManifestLoad(final NodeWatch watch, final Collection<String> snapshotKeys) {
+        if (!running) {
+            return;
+        }
+        backgroundExecutor.schedule(new Runnable() {
+
+            public void run() {
+                if (!running || manifestWatch != watch) {
+                    return;
+                }
+                try {
+                    watch.start();
+                    loadManifest(watch, snapshotKeys);
+                } catch (Exception e) {
+                    LOG.warn("Unable to load feature switch manifest, will retry", e);
+                    retryManifestLoad(watch, snapshotKeys);
+                }
+            }
+        }, MANIFEST_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the manifest last seen by the watch (and any of its chunks that changed) and applies the nodes relevant to this
+     * service, i.e. the feature switch nodes and the override nodes of this application, host and override dimensions.
+     */
+    private void loadManifest(NodeWatch watch, Collection<String> snapshotKeys) throws Exception {
+        ChildData data = watch.getCurrentData();
+        FeatureSwitchManifest previous;
+        synchronized (lock) {
+            previous = manifest;
+        }
+        FeatureSwitchManifest newManifest = null;
+        if (data == null) {
+            LOG.warn("Feature switch manifest " + watch.getPath() + " does not exist");
+        } else {
+            newManifest = FeatureSwitchManifest.read(client, watch.getPath(), data.getData(), previous);
+            if (newManifest == null) {
+                return; // changed while being read - the watch loads the new version
+            }
+        }
+
+        Map<String, byte[]> newManifestNodes = new HashMap<String, byte[]>();
+        if (newManifest != null) {
+            for (Map.Entry<String, byte[]> node : newManifest.getNodes().entrySet()) {
+                if (manifestNodeLevel(node.getKey()) != null) {
+                    newManifestNodes.put(node.getKey(), node.getValue());
+                }
+            }
+        }
+        synchronized (lock) {
+            if (!running || (manifest != null && newManifest != null && newManifest.getVersion() <= manifest.getVersion())) {
+                return; // an older version than the one loaded
+            }
+            Set<String> keys = new HashSet<String>();
+            for (Map.Entry<String, byte[]> node : newManifestNodes.entrySet()) {
+                if (!Arrays.equals(manifestNodes.get(node.getKey()), node.getValue())) {
+                    String key = manifestNodeKey(node.getKey());
+                    featureSwitchNodes(key).values[manifestNodeLevel(node.getKey())] = parseValue(key, node.getValue());
+                    keys.add(key);
+                }
+            }
+            for (String node : manifestNodes.keySet()) {
+                if (!newManifestNodes.containsKey(node)) {
+                    String key = manifestNodeKey(node);
+                    featureSwitchNodes(key).values[manifestNodeLevel(node)] = null;
+                    keys.add(key);
+                }
+            }
+            manifest = newManifest;
+            manifestNodes = newManifestNodes;
+            publishResolvedValues(keys);
+            removeMissingFeatureSwitches(snapshotKeys);
+        }
+        resyncCompleted();
+    }
+
+    private static String manifestNodeKey(String node) {
+        int slash = node.indexOf('/');
+        return slash < 0 ? node : node.substring(0, slash);
+    }
+
+    /**
+     * @return the override level of a node in the manifest, or null if the node is not relevant to this service
+     */
+    private Integer manifestNodeLevel(String node) {
+        int slash = node.indexOf('/');
+        return overrideLevelsBySuffix.get(slash < 0 ? "" : node.substring(slash));
+    }
+
+    private void treeNodeChanged(String path, ChildData data) {
+        String key = featureSwitchKey(path);
+        if (key == null) {
+            return; // namespace node
+        }
+        Integer level = overrideLevelsBySuffix.get(overridePathSuffix(path));
+        if (level == null) {
+            return; // an intermediate node of an override path
+        }
+        synchronized (lock) {
+            featureSwitchNodes(key).values[level] = parseValue(key, data == null ? null : data.getData());
+            publishResolvedValue(key);
+        }
+    }
+
+    /**
+     * @return the feature switch key of a node below the namespace, or null for the namespace node itself
+     */
+    private String featureSwitchKey(String path) {
+        if (path.length() < featureSwitchNamespace.length()) {
+            return null;
+        }
+        int end = path.indexOf('/', featureSwitchNamespace.length());
+        return end < 0 ? path.substring(featureSwitchNamespace.length()) : path.substring(featureSwitchNamespace.length(), end);
+    }
+
+    /**
+     * @return the path of a node relative to its feature switch node ("" for the feature switch node itself), or null for the
+     *         namespace node
+     */
+    private String overridePathSuffix(String path) {
+        String key = featureSwitchKey(path);
+        if (key == null) {
+            return null;
+        }
+        return path.substring(featureSwitchNamespace.length() + key.length());
+    }
+
+    /**
+     * Parses a node value (UTF-8) into a boolean or rollout rule (see FeatureSwitchRule) and a typed value (see
+     * FeatureSwitchValue), or null if the node has no value. The usual boolean values share a single NodeValue each.
+     */
+    private static NodeValue parseValue(String key, byte[] newDataValue) {
+        if (newDataValue == null || newDataValue.length == 0) {
+            return null;
+        }
+        String stringvalue = new String(newDataValue, StandardCharsets.UTF_8);
+        NodeValue booleanValue = NodeValue.BOOLEANS.get(stringvalue);
+        if (booleanValue != null) {
+            return booleanValue;
+        }
+        FeatureSwitchRule rule = null;
+        try {
+            rule = FeatureSwitchRule.parse(stringvalue, key);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Ignoring invalid rule of feature switch " + key + ": " + stringvalue, e);
+        }
+        return new NodeValue(rule, FeatureSwitchValue.parse(stringvalue));
+    }
+
+    /**
+     * Resolves the value of a feature switch from its cached node values (in override precedence order) and publishes it to
+     * the lookup table. Must be called holding the lock.
+     */
+    private FeatureSwitchEntry publishResolvedValue(String key) {
+        publishResolvedValues(Collections.singleton(key));
+        return featureSwitches.get(key);
+    }
+
+    /**
+     * Resolves and publishes the values of several feature switches, with at most a single copy of the lookup table. Must be
+     * called holding the lock.
+     */
+    private void publishResolvedValues(Collection<String> keys) {
+        HashMap<String, FeatureSwitchEntry> newFeatureSwitches = null;
+        boolean changed = false;
+        for (String key : keys) {
+            FeatureSwitchRule rule = resolveValue(key);
+            FeatureSwitchValue value = resolveTypedValue(key);
+            FeatureSwitchEntry entry = (newFeatureSwitches != null ? newFeatureSwitches : featureSwitches).get(key);
+            if (entry == null) {
+                if (newFeatureSwitches == null) {
+                    newFeatureSwitches = new HashMap<String, FeatureSwitchEntry>(featureSwitches);
+                }
+                newFeatureSwitches.put(key, newFeatureSwitchEntry(key, rule, value));
+                changed = true;
+                if (rule.getValue() != unknownFeatureSwitchDefault) {
+                    recordChange(key, unknownFeatureSwitchDefault);
+                }
+            } else if (!entry.rule.equals(rule) || !entry.value.equals(value)) {
+                boolean previousValue = entry.enabled;
+                entry.setRule(rule);
+                entry.value = value;
+                resolvedValues.set(entry.id, rule);
+                changed = true;
+                if (previousValue != rule.getValue()) {
+                    recordChange(key, previousValue);
+                }
+            }
+        }
+        if (newFeatureSwitches != null) {
+            featureSwitches = newFeatureSwitches;
+            if (maxFeatureSwitches > 0 && newFeatureSwitches.size() > maxFeatureSwitches) {
+                scheduleEviction();
+            }
+        }
+        if (changed) {
+            resolvedValuesChanged();
+        }
+    }
+
+    /**
+     * Removes the feature switches (loaded from the snapshot) that have no node value now that the whole namespace has been
+     * loaded, so they are unknown rather than false. Those that do, or are bound, are published instead. Must be called holding
+     * the lock.
+     */
+    private void removeMissingFeatureSwitches(Collection<String> keys) {
+        HashMap<String, FeatureSwitchEntry> newFeatureSwitches = null;
+        List<String> publishKeys = new ArrayList<String>();
+        for (String key : keys) {
+            FeatureSwitchEntry entry = featureSwitches.get(key);
+            FeatureSwitchNodes nodes = featureSwitchNodes.get(key);
+            if (entry == null || entry.bound || (nodes != null && nodes.hasValue())) {
+                publishKeys.add(key);
+                continue;
+            }
+            if (newFeatureSwitches == null) {
+                newFeatureSwitches = new HashMap<String, FeatureSwitchEntry>(featureSwitches);
+            }
+            resolvedValues.release(newFeatureSwitches.remove(key).id);
+            if (nodes != null && nodes.watches == null) {
+                featureSwitchNodes.remove(key);
+            }
+            if (metrics != null) {
+                metrics.removeKey(key);
+            }
+            if (entry.enabled != unknownFeatureSwitchDefault) {
+                recordChange(key, entry.enabled);
+            }
+        }
+        if (newFeatureSwitches != null) {
+            featureSwitches = newFeatureSwitches;
+            resolvedValuesChanged();
+        }
+        publishResolvedValues(publishKeys);
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private FeatureSwitchEntry newFeatureSwitchEntry(String key, FeatureSwitchRule rule, FeatureSwitchValue value) {
+        int id = resolvedValues.allocate();
+        resolvedValues.set(id, rule);
+        return new FeatureSwitchEntry(id, key, rule, value, metrics == null ? null : metrics.keyMetrics(key));
+    }
+
+    private void scheduleEviction() {
+        if (!evictionScheduled && running) {
+            evictionScheduled = true;
+            backgroundExecutor.execute(new Runnable() {
+
+                public void run() {
+                    evictFeatureSwitches();
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the watches of feature switches that have been idle for too long, then of the least recently used feature
+     * switches while there are more than the maximum. Lookups mark their feature switch as referenced, and each sweep turns
+     * that into the time it was last referenced (to within a sweep).
+     */
+    private void evictFeatureSwitches() {
+        synchronized (lock) {
+            evictionScheduled = false;
+            long now = System.currentTimeMillis();
+            List<FeatureSwitchEntry> candidates = new ArrayList<FeatureSwitchEntry>();
+            for (FeatureSwitchEntry entry : featureSwitches.values()) {
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    entry.lastReferencedMillis = now;
+                }
+                if (!entry.bound) {
+                    candidates.add(entry);
+                }
+            }
+            Collections.sort(candidates, new Comparator<FeatureSwitchEntry>() {
+
+                public int compare(FeatureSwitchEntry entry1, FeatureSwitchEntry entry2) {
+                    return Long.compare(entry1.lastReferencedMillis, entry2.lastReferencedMillis);
+                }
+            });
+
+            int excess = maxFeatureSwitches > 0 ? featureSwitches.size() - maxFeatureSwitches : 0;
+            List<String> evictedKeys = new ArrayList<String>();
+            for (FeatureSwitchEntry entry : candidates) {
+                boolean idle =
+                        featureSwitchIdleTimeoutMillis > 0 && now - entry.lastReferencedMillis >= featureSwitchIdleTimeoutMillis;
+                if (!idle && evictedKeys.size() >= excess) {
+                    break;
+                }
+                evictedKeys.add(entry.key);
+            }
+            if (evictedKeys.isEmpty()) {
+                return;
+            }
+
+            HashMap<String, FeatureSwitchEntry> newFeatureSwitches = new HashMap<String, FeatureSwitchEntry>(featureSwitches);
+            for (String key : evictedKeys) {
+                resolvedValues.release(newFeatureSwitches.remove(key).id);
+                pendingChanges.remove(key);
+                FeatureSwitchNodes nodes = featureSwitchNodes.remove(key);
+                int closed = nodes == null ? 0 : closeNodeWatches(nodes);
+                if (metrics != null) {
+                    for (int i = 0; i < closed; i++) {
+                        metrics.watchRemoved();
+                    }
+                    metrics.removeKey(key);
+                }
+            }
+            featureSwitches = newFeatureSwitches;
+            resolvedValuesChanged();
+        }
+    }
+
+    private void connectionStateChanged(ConnectionState newState) {
+        switch (newState) {
+            case CONNECTED:
+                disconnected = false;
+                sessionId = currentSessionId();
+                break;
+            case SUSPENDED:
+            case LOST:
+                disconnected = true;
+                break;
+            case RECONNECTED:
+                long newSessionId = currentSessionId();
+                if (newSessionId != sessionId) {
+                    // the watches went with the old session (the tree and children caches reload themselves)
+                    sessionId = newSessionId;
+                    scheduleResync();
+                }
+                // watches that fired while disconnected, and could not be read again, are not set even within the session
+                FeatureSwitchBackend currentBackend = backend;
+                if (currentBackend instanceof CuratorFeatureSwitchBackend) {
+                    ((CuratorFeatureSwitchBackend) currentBackend).getFailedRefreshes().refresh();
+                }
+                disconnected = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Checks the local read endpoint, and moves the reads if the endpoint to read from has changed: the node watches are moved
+     * to a new CuratorFramework connected to the local endpoint, or to the ensemble's (keeping their values), and the old
+     * local one is closed. The moved watches are then reloaded as after a session expiry (see scheduleResync()). If the local
+     * endpoint can not be connected to, the move is tried again on the next check.
+     */
+    private void checkLocalRead() {
+        localReadEndpoint.check();
+        String newConnectString = localReadEndpoint.getConnectionString();
+        if (newConnectString.equals(readConnectString)) {
+            return;
+        }
+
+        CuratorFramework newClient = localReadEndpoint.isUsingLocal() ? newClient(newConnectString) : client;
+        if (newClient != client) {
+            try {
+                if (!newClient.blockUntilConnected(localReadTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Unable to connect to " + newConnectString + " to read feature switches, will retry");
+                    newClient.close();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                newClient.close();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        CuratorFramework oldClient;
+        synchronized (lock) {
+            if (!running) {
+                if (newClient != client) {
+                    newClient.close();
+                }
+                return;
+            }
+            oldClient = readClient;
+            oldClient.getConnectionStateListenable().removeListener(connectionStateListener);
+            CuratorFeatureSwitchBackend newBackend = new CuratorFeatureSwitchBackend(newClient, null, backendNamespace());
+            for (Map.Entry<String, FeatureSwitchNodes> entry : featureSwitchNodes.entrySet()) {
+                FeatureSwitchNodes nodes = entry.getValue();
+                for (int level = 0; nodes.watches != null && level < nodes.watches.length; level++) {
+                    if (nodes.watches[level] != null) {
+                        nodes.watches[level] =
+                                newBackend.moveWatch(nodes.watches[level], levelNodePrefixes[level] + entry.getKey()
+                                        + overridePathSuffixes[level], nodes.listeners[level]);
+                    }
+                }
+            }
+            FeatureSwitchBackend oldBackend = backend;
+            backend = newBackend;
+            readClient = newClient;
+            readConnectString = newConnectString;
+            sessionId = currentSessionId();
+            disconnected = !newClient.getZookeeperClient().isConnected();
+            newClient.getConnectionStateListenable().addListener(connectionStateListener);
+            oldBackend.close(); // drops the moved watches it pooled, which the ensemble's client would keep otherwise
+        }
+        if (oldClient != client) {
+            oldClient.close();
+        }
+        scheduleResync();
+    }
+
+    private long currentSessionId() {
+        try {
+            return readClient.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Schedules a reload of every watched node, after a random delay (see setResyncJitterMillis()).
+     */
+    private void scheduleResync() {
+        synchronized (lock) {
+            if (!running || (nodeWatchCount == 0 && manifestWatch == null)) {
+                return;
+            }
+            resyncing = true;
+            if (resyncScheduled) {
+                return;
+            }
+            resyncScheduled = true;
+        }
+        long delayMillis = resyncJitterMillis > 0 ? (long) (Math.random() * resyncJitterMillis) : 0;
+        backgroundExecutor.schedule(new Runnable() {
+
+            public void run() {
+                List<FeatureSwitchBackend.Watch> watches;
+                synchronized (lock) {
+                    resyncScheduled = false;
+                    watches = new ArrayList<FeatureSwitchBackend.Watch>(nodeWatchCount + 1);
+                    if (manifestWatch != null) {
+                        watches.add(manifestResyncWatch(manifestWatch));
+                    }
+                    for (FeatureSwitchNodes nodes : featureSwitchNodes.values()) {
+                        if (nodes.watches != null) {
+                            for (FeatureSwitchBackend.Watch watch : nodes.watches) {
+                                if (watch != null) {
+                                    watches.add(watch);
+                                }
+                            }
+                        }
+                    }
+                }
+                resyncNodeWatches(watches, 0, new AtomicInteger(watches.size()));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reloads the watched nodes (resetting their watches) in batches, at no more than the configured rate. Values are
+     * published as each node is read; once every node has been read the values are no longer stale. If some reads fail the
+     * reload is tried again.
+     */
+    private void resyncNodeWatches(final List<FeatureSwitchBackend.Watch> watches, final int from, final AtomicInteger remaining) {
+        if (!running) {
+            return;
+        }
+        Runnable onComplete = new Runnable() {
+
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    resyncCompleted();
+                }
+            }
+        };
+        int batchSize = watches.size();
+        if (resyncReadsPerSecond > 0) {
+            batchSize = (int) Math.max(1, resyncReadsPerSecond * RESYNC_BATCH_MILLIS / 1000);
+        }
+        final int to = Math.min(watches.size(), from + batchSize);
+        for (int i = from; i < to; i++) {
+            watches.get(i).refresh(afterQueuedWatchEvents(onComplete));
+        }
+
+        if (to < watches.size()) {
+            backgroundExecutor.schedule(new Runnable() {
+
+                public void run() {
+                    resyncNodeWatches(watches, to, remaining);
+                }
+            }, RESYNC_BATCH_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            backgroundExecutor.schedule(new Runnable() {
+
+                public void run() {
+                    if (remaining.get() > 0) {
+                        LOG.warn("Unable to reload " + remaining.get() + " feature switch nodes from Zookeeper, will retry");
+                        scheduleResync();
+                    }
+                }
+            }, connectionTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the manifest watch as a node watch to be reloaded, completing once the manifest it read has been loaded
+     */
+    private FeatureSwitchBackend.Watch manifestResyncWatch(final NodeWatch watch) {
+        return new FeatureSwitchBackend.Watch() {
+
+            public byte[] getData() {
+                ChildData data = watch.getCurrentData();
+                return data == null ? null : data.getData();
+            }
+
+            public void refresh(final Runnable onComplete) {
+                watch.refresh(new Runnable() {
+
+                    public void run() {
+                        // after the load scheduled by a change
+                        backgroundExecutor.execute(onComplete);
+                    }
+                });
+            }
+
+            public void close() {
+                watch.close();
+            }
+        };
+    }
+
+    private void resyncCompleted() {
+        synchronized (lock) {
+            if (!resyncScheduled) {
+                resyncing = false;
+            }
+        }
+    }
+
+    /**
+     * Records a change to be notified to listeners and schedules the notification. Must be called holding the lock.
+     */
+    private void recordChange(String key, boolean previousValue) {
+        if (listeners.isEmpty() || !running) {
+            return;
+        }
+        if (!pendingChanges.containsKey(key)) {
+            pendingChanges.put(key, previousValue);
+        }
+        if (!notificationScheduled) {
+            notificationScheduled = true;
+            notificationExecutor.schedule(new Runnable() {
+
+                public void run() {
+                    notifyListeners();
+                }
+            }, listenerCoalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void notifyListeners() {
+        Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+        synchronized (lock) {
+            notificationScheduled = false;
+            for (Map.Entry<String, Boolean> pendingChange : pendingChanges.entrySet()) {
+                FeatureSwitchEntry entry = featureSwitches.get(pendingChange.getKey());
+                boolean enabled = entry != null ? entry.enabled : unknownFeatureSwitchDefault;
+                if (enabled != pendingChange.getValue()) {
+                    changes.put(pendingChange.getKey(), enabled);
+                }
+            }
+            pendingChanges.clear();
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        changes = Collections.unmodifiableMap(changes);
+        for (final ListenerRegistration registration : listeners) {
+            final Map<String, Boolean> matchingChanges = registration.matchingChanges(changes);
+            if (matchingChanges.isEmpty()) {
+                continue;
+            }
+            Runnable notification = new Runnable() {
+
+                public void run() {
+                    try {
+                        registration.listener.featureSwitchesChanged(matchingChanges);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Feature switch listener failed", e);
+                    }
+                }
+            };
+            if (listenerExecutor != null) {
+                listenerExecutor.execute(notification);
+            } else {
+                notification.run();
+            }
+        }
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private void resolvedValuesChanged() {
+        version++;
+        currentSnapshot = newSnapshot();
+        if (snapshotStore != null && running && snapshotWritePending.compareAndSet(false, true)) {
+            backgroundExecutor.execute(new Runnable() {
+
+                public void run() {
+                    snapshotWritePending.set(false);
+                    writeSnapshot();
+                }
+            });
+        }
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private Snapshot newSnapshot() {
+        return new Snapshot(version, featureSwitches, resolvedValues.copy(), unknownFeatureSwitchDefault,
+                isWholeNamespaceLoaded() ? null : this);
+    }
+
+    private void writeSnapshot() {
+        Map<String, Boolean> values = new HashMap<String, Boolean>();
+        for (FeatureSwitchEntry entry : featureSwitches.values()) {
+            values.put(entry.key, entry.enabled);
+        }
+        try {
+            snapshotStore.write(values);
+        } catch (IOException e) {
+            LOG.warn("Unable to write feature switch snapshot " + snapshotStore.getFile(), e);
+        }
+    }
+
+    private FeatureSwitchRule resolveValue(String key) {
+        FeatureSwitchNodes nodes = featureSwitchNodes.get(key);
+        for (int level = 0; nodes != null && level < overridePathSuffixes.length; level++) {
+            NodeValue value = nodes.values[level];
+            if (value != null && value.rule != null) {
+                if (metrics != null) {
+                    metrics.setResolvedLevel(key, level);
+                }
+                return value.rule;
+            }
+        }
+        if (metrics != null) {
+            metrics.setResolvedLevel(key, overridePathSuffixes.length);
+        }
+        return FeatureSwitchRule.FALSE;
+    }
+
+    private FeatureSwitchValue resolveTypedValue(String key) {
+        FeatureSwitchNodes nodes = featureSwitchNodes.get(key);
+        if (nodes == null) {
+            return FeatureSwitchValue.NONE;
+        }
+        FeatureSwitchValue[] values = new FeatureSwitchValue[overridePathSuffixes.length];
+        for (int level = 0; level < overridePathSuffixes.length; level++) {
+            NodeValue value = nodes.values[level];
+            if (value != null) {
+                values[level] = value.value;
+            }
+        }
+        return FeatureSwitchValue.resolve(values);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // ignore - nothing more can be done with it
+        }
+    }
+
+    private static final class ListenerRegistration {
+
+        private final FeatureSwitchListener listener;
+        private final String key;
+        private final String keyPrefix;
+
+        private ListenerRegistration(FeatureSwitchListener listener, String key, String keyPrefix) {
+            this.listener = listener;
+            this.key = key;
+            this.keyPrefix = keyPrefix;
+        }
+
+        private Map<String, Boolean> matchingChanges(Map<String, Boolean> changes) {
+            if (key == null && keyPrefix == null) {
+                return changes;
+            }
+            Map<String, Boolean> matchingChanges = new LinkedHashMap<String, Boolean>();
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                if (change.getKey().equals(key) || (keyPrefix != null && change.getKey().startsWith(keyPrefix))) {
+                    matchingChanges.put(change.getKey(), change.getValue());
+                }
+            }
+            return Collections.unmodifiableMap(matchingChanges);
+        }
+    }
+
+    /**
+     * An immutable view of the lookup table: the (immutable) table itself, with a copy of the resolved rules. Lookups
+     * still mark the (live) entries as referenced, so feature switches only checked through snapshots are not evicted.
+     * Feature switches not in the table get the default for unknown feature switches, without waiting, and are loaded by the
+     * service in the background.
+     */
+    private static final class Snapshot implements FeatureSwitchSnapshot {
+
+        private final long version;
+        private final HashMap<String, FeatureSwitchEntry> entries;
+        private final ResolvedValueTable resolvedValues;
+        private final boolean unknownFeatureSwitchDefault;
+        private final ZKFeatureSwitchService service; // loads missing feature switches, null if the whole namespace is loaded
+        private volatile Map<String, Boolean> values; // built on first use
+
+        private Snapshot(long version, HashMap<String, FeatureSwitchEntry> entries, ResolvedValueTable resolvedValues,
+                boolean unknownFeatureSwitchDefault, ZKFeatureSwitchService service) {
+            this.version = version;
+            this.entries = entries;
+            this.resolvedValues = resolvedValues;
+            this.unknownFeatureSwitchDefault = unknownFeatureSwitchDefault;
+            this.service = service;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isEnabled(String key) {
+            FeatureSwitchEntry entry = lookup(key);
+            return entry == null ? unknownFeatureSwitchDefault : resolvedValues.isEnabled(entry.id);
+        }
+
+        public boolean isEnabled(String key, String contextId) {
+            FeatureSwitchEntry entry = lookup(key);
+            return entry == null ? unknownFeatureSwitchDefault : resolvedValues.getRule(entry.id).isEnabled(contextId);
+        }
+
+        private FeatureSwitchEntry lookup(String key) {
+            FeatureSwitchEntry entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.referenced) {
+                    entry.referenced = true;
+                }
+                if (entry.metrics != null) {
+                    entry.metrics.recordLookup();
+                }
+            } else if (service != null) {
+                service.snapshotMiss(key);
+            }
+            return entry;
+        }
+
+        public Map<String, Boolean> getValues() {
+            Map<String, Boolean> v = values;
+            if (v == null) {
+                Map<String, Boolean> newValues = new HashMap<String, Boolean>(entries.size() * 2);
+                for (FeatureSwitchEntry entry : entries.values()) {
+                    newValues.put(entry.key, resolvedValues.isEnabled(entry.id));
+                }
+                v = Collections.unmodifiableMap(newValues);
+                values = v;
+            }
+            return v;
+        }
+
+        @Override
+        public String toString() {
+            return "v" + version + getValues();
+        }
+    }
+
+    /**
+     * The parsed value of a node.
+     */
+    private static final class NodeValue {
+
+        private static final Map<String, NodeValue> BOOLEANS = new HashMap<String, NodeValue>();
+
+        static {
+            for (String value : new String[] { "true", "false", "1", "0" }) {
+                BOOLEANS.put(value, new NodeValue(FeatureSwitchRule.parse(value, null), FeatureSwitchValue.parse(value)));
+            }
+        }
+
+        private final FeatureSwitchRule rule; // null if not a boolean or rule
+        private final FeatureSwitchValue value;
+
+        private NodeValue(FeatureSwitchRule rule, FeatureSwitchValue value) {
+            this.rule = rule;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Listener of the watch of one node. A change is held in pendingEvent until it is applied, and replaced by any later
+     * change in the meantime.
+     */
+    private final class NodeListener implements FeatureSwitchBackend.Listener {
+
+        private final String key;
+        private final FeatureSwitchNodes nodes;
+        private final int level;
+        volatile WatchEvent pendingEvent; // see PENDING_WATCH_EVENT
+        private long appliedSequence = 0; // guarded by the lock
+
+        private NodeListener(String key, FeatureSwitchNodes nodes, int level) {
+            this.key = key;
+            this.nodes = nodes;
+            this.level = level;
+        }
+
+        public void nodeChanged(byte[] data, long modifiedMillis) {
+            watchEventReceived(this, new WatchEvent(data, modifiedMillis, watchEventSequence.incrementAndGet()));
+        }
+    }
+
+    /**
+     * A change to a node, not yet decoded.
+     */
+    private static final class WatchEvent {
+
+        private final byte[] data;
+        private final long modifiedMillis;
+        private final long sequence;
+
+        private WatchEvent(byte[] data, long modifiedMillis, long sequence) {
+            this.data = data;
+            this.modifiedMillis = modifiedMillis;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The node values and watches of a feature switch, by override level. Guarded by the lock.
+     */
+    private static final class FeatureSwitchNodes {
+
+        private final NodeValue[] values; // null where a node has no value
+        private FeatureSwitchBackend.Watch[] watches; // null until the nodes are watched
+        private FeatureSwitchBackend.Listener[] listeners;
+
+        private FeatureSwitchNodes(int levels) {
+            values = new NodeValue[levels];
+        }
+
+        private boolean hasValue() {
+            for (NodeValue value : values) {
+                if (value != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A feature switch in the lookup table.
+     */
+    private static final class FeatureSwitchEntry implements FeatureSwitch {
+
+        private final int id; // in the resolved value table
+        private final String key;
+        private final FeatureSwitchMetrics.KeyMetrics metrics; // null if metrics are off
+        private volatile FeatureSwitchRule rule;
+        private volatile boolean enabled;
+        private volatile FeatureSwitchValue value;
+
+        /**
+         * Set by lookups, cleared by eviction sweeps. Deliberately not volatile - a missed mark only makes eviction less
+         * accurate.
+         */
+        private boolean referenced = false;
+
+        // guarded by the lock
+        private boolean bound = false;
+        private long lastReferencedMillis = System.currentTimeMillis();
+
+        private FeatureSwitchEntry(int id, String key, FeatureSwitchRule rule, FeatureSwitchValue value,
+                FeatureSwitchMetrics.KeyMetrics metrics) {
+            this.id = id;
+            this.key = key;
+            this.metrics = metrics;
+            this.value = value;
+            setRule(rule);
+        }
+
+        /**
+         * Must be called holding the lock.
+         */
+        private void setRule(FeatureSwitchRule rule) {
+            this.rule = rule;
+            this.enabled = rule.getValue();
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public boolean isEnabled(String contextId) {
+            return rule.isEnabled(contextId);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + rule;
+        }
+    }
 }
@@ -0,0 +1,570 @@
+package com.wotifgroup.zkfss;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Writes feature switch and override values in batches. Each batch is committed as a single Zookeeper transaction, so
+ * services watching the feature switches see all of its changes at once rather than one node at a time.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * new ZKFeatureSwitchWriter(client).batch().set(&quot;X&quot;, true).setOverride(&quot;X&quot;, &quot;myApp&quot;, false).remove(&quot;Y&quot;).commit();
+ * </pre>
+ * <p>
+ * With enableManifest(), each batch also updates the aggregated manifest of the namespace (see
+ * ZKFeatureSwitchService.enableManifest()) in the same transaction.
+ *
+ * @author lazjen
+ *
+ */
+public class ZKFeatureSwitchWriter {
+
+    private static final long DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_VALUE = new byte[0];
+    private static final int MANIFEST_TRANSACTION_BYTES = FeatureSwitchManifest.MAX_NODE_BYTES / 2;
+
+    private final CuratorFramework client;
+    private String featureSwitchNamespace = ZKFeatureSwitchService.DEFAULT_FEATURE_SWITCH_NAMESPACE;
+    private long readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private boolean useManifest = false;
+
+    /**
+     * @param client
+     *            started CuratorFramework to write with
+     */
+    public ZKFeatureSwitchWriter(CuratorFramework client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the namespace of the feature switches. If the namespace supplied does not start and end with a "/", these are added.
+     * <P>
+     * Default: /zkfss/
+     *
+     * @param featureSwitchNamespace
+     *            Namespace for feature switches
+     * @return this writer
+     */
+    public ZKFeatureSwitchWriter setFeatureSwitchNamespace(String featureSwitchNamespace) {
+        this.featureSwitchNamespace = ZKFeatureSwitchService.normaliseFeatureSwitchNamespace(featureSwitchNamespace);
+        return this;
+    }
+
+    /**
+     * Set the maximum time (in millis) to wait for the current values of the nodes in a batch to be read.
+     * <P>
+     * Default: 30000 ms
+     *
+     * @param readTimeoutMillis
+     *            the maximum time (in millis) to wait
+     * @return this writer
+     */
+    public ZKFeatureSwitchWriter setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Keep the aggregated manifest of the namespace up to date: each batch updates it in the same transaction as the nodes,
+     * so services loading the manifest see the same atomic changes as services watching the nodes. Every writer of the
+     * namespace must keep the manifest up to date, otherwise rebuildManifest() brings it back in line with the nodes. Off by
+     * default.
+     *
+     * @return this writer
+     */
+    public ZKFeatureSwitchWriter enableManifest() {
+        useManifest = true;
+        return this;
+    }
+
+    /**
+     * Stops keeping the manifest up to date. This is the default.
+     *
+     * @return this writer
+     */
+    public ZKFeatureSwitchWriter disableManifest() {
+        useManifest = false;
+        return this;
+    }
+
+    /**
+     * Rebuilds the manifest of the namespace from the feature switch and override nodes, e.g. to create it for an existing
+     * namespace.
+     *
+     * @throws Exception
+     *             if the manifest could not be written. A KeeperException.BadVersionException or NodeExistsException means
+     *             another writer changed the manifest, and it can be rebuilt again.
+     */
+    public void rebuildManifest() throws Exception {
+        String namespacePath = featureSwitchNamespace.substring(0, featureSwitchNamespace.length() - 1);
+        client.createContainers(namespacePath);
+        Stat manifestStat = new Stat();
+        FeatureSwitchManifest manifest = readManifest(manifestStat);
+        Map<String, byte[]> nodes = new HashMap<String, byte[]>();
+        readNodes(namespacePath, nodes);
+        FeatureSwitchManifest newManifest = FeatureSwitchManifest.build(manifest, nodes);
+        addManifestOperations(client.inTransaction(), manifest, manifestStat, newManifest).commit();
+        removeUnusedChunks(newManifest);
+    }
+
+    /**
+     * Reads the value of every node below a node, with pipelined reads a level at a time (see readBelow()).
+     */
+    private void readNodes(String parentPath, Map<String, byte[]> nodes) throws Exception {
+        for (ChildData data : readBelow(Collections.singleton(parentPath)).values()) {
+            byte[] value = data.getData();
+            if (value != null && value.length > 0) {
+                nodes.put(data.getPath().substring(featureSwitchNamespace.length()), value);
+            }
+        }
+    }
+
+    /**
+     * @return the current manifest, or null if there is none
+     */
+    private FeatureSwitchManifest readManifest(Stat manifestStat) throws Exception {
+        String manifestPath = FeatureSwitchManifest.path(featureSwitchNamespace);
+        byte[] manifestData;
+        try {
+            manifestData = client.getData().storingStatIn(manifestStat).forPath(manifestPath);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+        FeatureSwitchManifest manifest = FeatureSwitchManifest.read(client, manifestPath, manifestData, null);
+        if (manifest == null) {
+            throw new KeeperException.BadVersionException(manifestPath); // changed while being read
+        }
+        return manifest;
+    }
+
+    /**
+     * Adds the writes of the next version of the manifest to a transaction, checking that the manifest has not changed since
+     * it was read. Changed chunks that do not fit in the transaction (as a Zookeeper request is limited to 1 MB) are written
+     * beforehand; they are not read until the manifest refers to them.
+     */
+    private CuratorTransactionFinal addManifestOperations(CuratorTransaction transaction, FeatureSwitchManifest manifest,
+            Stat manifestStat, FeatureSwitchManifest newManifest) throws Exception {
+        String manifestPath = FeatureSwitchManifest.path(featureSwitchNamespace);
+        byte[] manifestData = newManifest.encode();
+        boolean manifestExists = manifest != null;
+        int transactionBytes = manifestData.length;
+        Map<String, byte[]> chunkWrites = new HashMap<String, byte[]>();
+        for (int i = 0; i < newManifest.getChunkCount(); i++) {
+            if (!newManifest.isChunkChanged(i)) {
+                continue;
+            }
+            String chunkPath = manifestPath + "/" + newManifest.getChunkNode(i);
+            byte[] chunkData = newManifest.encodeChunk(i);
+            boolean leftByFailedBatch = manifestExists && client.checkExists().forPath(chunkPath) != null;
+            if (!leftByFailedBatch && transactionBytes + chunkData.length <= MANIFEST_TRANSACTION_BYTES) {
+                chunkWrites.put(chunkPath, chunkData);
+                transactionBytes += chunkData.length;
+                continue;
+            }
+            if (!manifestExists) {
+                // the chunks need a parent - an empty manifest is replaced by the transaction
+                client.create().forPath(manifestPath, FeatureSwitchManifest.empty().encode());
+                manifestStat.setVersion(client.checkExists().forPath(manifestPath).getVersion());
+                manifestExists = true;
+            }
+            try {
+                client.create().forPath(chunkPath, chunkData);
+            } catch (KeeperException.NodeExistsException e) {
+                client.setData().forPath(chunkPath, chunkData);
+            }
+        }
+
+        CuratorTransactionFinal operations;
+        if (manifestExists) {
+            operations = transaction.setData().withVersion(manifestStat.getVersion()).forPath(manifestPath, manifestData).and();
+        } else {
+            operations = transaction.create().forPath(manifestPath, manifestData).and();
+        }
+        for (Map.Entry<String, byte[]> chunkWrite : chunkWrites.entrySet()) {
+            operations = operations.create().forPath(chunkWrite.getKey(), chunkWrite.getValue()).and();
+        }
+        return operations;
+    }
+
+    /**
+     * Removes the chunk nodes not referred to by the manifest, i.e. previous versions of chunks and those left by batches
+     * that failed. Removal is best effort: a later batch removes any left behind.
+     */
+    private void removeUnusedChunks(FeatureSwitchManifest manifest) {
+        String manifestPath = FeatureSwitchManifest.path(featureSwitchNamespace);
+        Set<String> chunkNodes = new HashSet<String>();
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            chunkNodes.add(manifest.getChunkNode(i));
+        }
+        try {
+            for (String child : client.getChildren().forPath(manifestPath)) {
+                if (!chunkNodes.contains(child)) {
+                    client.delete().inBackground().forPath(manifestPath + "/" + child);
+                }
+            }
+        } catch (Exception e) {
+            // left for the next batch
+        }
+    }
+
+    /**
+     * @return a new, empty batch of changes
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * A batch of changes to feature switch and override values. Override values are identified by their sub-key below the
+     * feature switch, e.g. "myApp", "myHost" or "myApp/myHost" (see the README.md). A later change to the same node replaces an
+     * earlier one.
+     */
+    public class Batch {
+
+        /**
+         * New value of each node by path, null to remove the node.
+         */
+        private final NavigableMap<String, byte[]> changes = new TreeMap<String, byte[]>();
+
+        private Batch() {
+        }
+
+        /**
+         * Set the value of a feature switch.
+         *
+         * @param key
+         *            Feature switch key value.
+         * @param value
+         *            the new value
+         * @return this batch
+         */
+        public Batch set(String key, boolean value) {
+            changes.put(path(key, null), value ? TRUE : FALSE);
+            return this;
+        }
+
+        /**
+         * Set the value of a feature switch to a rollout rule or typed value (see the README.md), e.g. "percent=10" or "42".
+         *
+         * @param key
+         *            Feature switch key value.
+         * @param value
+         *            the new value, not empty (use remove() to remove the value)
+         * @return this batch
+         */
+        public Batch set(String key, String value) {
+            changes.put(path(key, null), encode(value));
+            return this;
+        }
+
+        /**
+         * Set an override value of a feature switch.
+         *
+         * @param key
+         *            Feature switch key value.
+         * @param subKey
+         *            the override sub-key, e.g. "myApp", "myHost" or "myApp/myHost"
+         * @param value
+         *            the new value
+         * @return this batch
+         */
+        public Batch setOverride(String key, String subKey, boolean value) {
+            changes.put(path(key, subKey), value ? TRUE : FALSE);
+            return this;
+        }
+
+        /**
+         * Set an override value of a feature switch to a rollout rule or typed value (see set(key, String)).
+         *
+         * @param key
+         *            Feature switch key value.
+         * @param subKey
+         *            the override sub-key, e.g. "myApp", "myHost" or "myApp/myHost"
+         * @param value
+         *            the new value, not empty (use removeOverride() to remove the value)
+         * @return this batch
+         */
+        public Batch setOverride(String key, String subKey, String value) {
+            changes.put(path(key, subKey), encode(value));
+            return this;
+        }
+
+        /**
+         * Remove a feature switch, along with all of its override nodes.
+         *
+         * @param key
+         *            Feature switch key value.
+         * @return this batch
+         */
+        public Batch remove(String key) {
+            changes.put(path(key, null), null);
+            return this;
+        }
+
+        /**
+         * Remove an override value of a feature switch, along with the override nodes below it (e.g. "myApp/myHost" below
+         * "myApp").
+         *
+         * @param key
+         *            Feature switch key value.
+         * @param subKey
+         *            the override sub-key, e.g. "myApp", "myHost" or "myApp/myHost"
+         * @return this batch
+         */
+        public Batch removeOverride(String key, String subKey) {
+            changes.put(path(key, subKey), null);
+            return this;
+        }
+
+        /**
+         * Commits the changes in a single transaction. The current values of the nodes are read first (in one pipelined
+         * batch) and the transaction checks that none of them have been changed by another writer in the meantime. Missing
+         * parent nodes of overrides are created (without a value), and nodes already holding their new value are only checked,
+         * not written, so they trigger no watches. The nodes below removed nodes are read as well, and removed first.
+         *
+         * @throws IllegalArgumentException
+         *             if the batch sets a node below a node it removes
+         * @throws Exception
+         *             if the changes could not be committed, in which case none of them have been made. In particular, a
+         *             KeeperException.BadVersionException, NodeExistsException or NotEmptyException means another writer
+         *             changed one of the nodes, and the batch can be committed again.
+         */
+        public void commit() throws Exception {
+            if (changes.isEmpty()) {
+                return;
+            }
+            Set<String> removedPaths = new TreeSet<String>();
+            for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    removedPaths.add(change.getKey());
+                } else if (removedParent(change.getKey()) != null) {
+                    throw new IllegalArgumentException("Can not set " + change.getKey() + " as the batch removes "
+                            + removedParent(change.getKey()));
+                }
+            }
+            String namespacePath = featureSwitchNamespace.substring(0, featureSwitchNamespace.length() - 1);
+            client.createContainers(namespacePath);
+
+            // the changed nodes and their parents below the namespace, parents first
+            Set<String> paths = new TreeSet<String>();
+            for (String path : changes.keySet()) {
+                for (String p = path; p.length() > namespacePath.length(); p = ZKPaths.getPathAndNode(p).getPath()) {
+                    paths.add(p);
+                }
+            }
+            Map<String, ChildData> currentData = read(paths);
+            Map<String, ChildData> removedChildren = readBelow(removedPaths);
+            Stat manifestStat = new Stat();
+            FeatureSwitchManifest manifest = useManifest ? readManifest(manifestStat) : null;
+            FeatureSwitchManifest newManifest = null;
+
+            CuratorTransaction transaction = client.inTransaction();
+            CuratorTransactionFinal operations = null;
+            for (String path : paths) {
+                ChildData data = currentData.get(path);
+                if (!changes.containsKey(path)) {
+                    if (data == null) {
+                        operations = transaction.create().forPath(path, NO_VALUE).and();
+                        transaction = operations;
+                    }
+                    continue;
+                }
+                byte[] value = changes.get(path);
+                if (value == null) {
+                    continue; // removed below
+                }
+                if (data == null) {
+                    operations = transaction.create().forPath(path, value).and();
+                } else if (Arrays.equals(data.getData(), value)) {
+                    operations = transaction.check().withVersion(data.getStat().getVersion()).forPath(path).and();
+                } else {
+                    operations = transaction.setData().withVersion(data.getStat().getVersion()).forPath(path, value).and();
+                }
+                transaction = operations;
+            }
+            NavigableMap<String, ChildData> removals = new TreeMap<String, ChildData>(removedChildren);
+            for (String path : removedPaths) {
+                if (currentData.containsKey(path)) {
+                    removals.put(path, currentData.get(path));
+                }
+            }
+            // children before their parents
+            for (ChildData data : removals.descendingMap().values()) {
+                operations = transaction.delete().withVersion(data.getStat().getVersion()).forPath(data.getPath()).and();
+                transaction = operations;
+            }
+
+            if (useManifest) {
+                Map<String, byte[]> nodes = new HashMap<String, byte[]>();
+                if (manifest != null) {
+                    nodes.putAll(manifest.getNodes());
+                } else {
+                    readNodes(namespacePath, nodes); // the first manifest of an existing namespace
+                }
+                for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+                    String node = change.getKey().substring(featureSwitchNamespace.length());
+                    if (change.getValue() == null) {
+                        nodes.remove(node);
+                    } else {
+                        nodes.put(node, change.getValue());
+                    }
+                }
+                for (String path : removedChildren.keySet()) {
+                    nodes.remove(path.substring(featureSwitchNamespace.length()));
+                }
+                newManifest = FeatureSwitchManifest.build(manifest, nodes);
+                operations = addManifestOperations(transaction, manifest, manifestStat, newManifest);
+            }
+            if (operations != null) {
+                operations.commit();
+            }
+            if (newManifest != null) {
+                removeUnusedChunks(newManifest);
+            }
+        }
+
+        /**
+         * @return the node removed by this batch that a path is below, or null if there is none
+         */
+        private String removedParent(String path) {
+            for (String p = ZKPaths.getPathAndNode(path).getPath(); p.length() >= featureSwitchNamespace.length(); p =
+                    ZKPaths.getPathAndNode(p).getPath()) {
+                if (changes.containsKey(p) && changes.get(p) == null) {
+                    return p;
+                }
+            }
+            return null;
+        }
+
+        private byte[] encode(String value) {
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException("A feature switch value must not be empty");
+            }
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private String path(String key, String subKey) {
+            if (key == null || key.isEmpty()) {
+                throw new IllegalArgumentException("Feature switch key must be set");
+            }
+            if (subKey == null) {
+                return featureSwitchNamespace + key;
+            }
+            if (subKey.isEmpty() || subKey.startsWith("/") || subKey.endsWith("/")) {
+                throw new IllegalArgumentException("Invalid override sub-key: " + subKey);
+            }
+            return featureSwitchNamespace + key + "/" + subKey;
+        }
+    }
+
+    /**
+     * Reads every node below the given nodes, a level at a time: the children of each level are listed, and then read, in one
+     * pipelined batch each.
+     *
+     * @return the data of each node below the given ones, by path
+     */
+    private Map<String, ChildData> readBelow(Collection<String> parentPaths) throws Exception {
+        Map<String, ChildData> data = new HashMap<String, ChildData>();
+        for (Collection<String> paths = parentPaths; !paths.isEmpty();) {
+            Collection<String> children = children(paths);
+            data.putAll(read(children));
+            paths = children;
+        }
+        return data;
+    }
+
+    /**
+     * Lists the children of the nodes in one pipelined batch.
+     *
+     * @return the paths of the children of the nodes that exist
+     */
+    private Collection<String> children(Collection<String> paths) throws Exception {
+        final Collection<String> children = new ConcurrentLinkedQueue<String>();
+        final AtomicInteger failure = new AtomicInteger(KeeperException.Code.OK.intValue());
+        final CountDownLatch remaining = new CountDownLatch(paths.size());
+        BackgroundCallback callback = new BackgroundCallback() {
+
+            public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                    for (String child : event.getChildren()) {
+                        children.add(ZKPaths.makePath(event.getPath(), child));
+                    }
+                } else if (event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+                    failure.set(event.getResultCode());
+                }
+                remaining.countDown();
+            }
+        };
+        for (String path : paths) {
+            client.getChildren().inBackground(callback).forPath(path);
+        }
+        if (!remaining.await(readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Timed out reading feature switch nodes");
+        }
+        if (failure.get() != KeeperException.Code.OK.intValue()) {
+            throw KeeperException.create(KeeperException.Code.get(failure.get()));
+        }
+        return children;
+    }
+
+    /**
+     * Reads the current data of the nodes in one pipelined batch.
+     *
+     * @return the data of each node that exists, by path
+     */
+    private Map<String, ChildData> read(Collection<String> paths) throws Exception {
+        final Map<String, ChildData> data = new ConcurrentHashMap<String, ChildData>();
+        final AtomicInteger failure = new AtomicInteger(KeeperException.Code.OK.intValue());
+        final CountDownLatch remaining = new CountDownLatch(paths.size());
+        BackgroundCallback callback = new BackgroundCallback() {
+
+            public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                    data.put(event.getPath(), new ChildData(event.getPath(), event.getStat(), event.getData()));
+                } else if (event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+                    failure.set(event.getResultCode());
+                }
+                remaining.countDown();
+            }
+        };
+        for (String path : paths) {
+            client.getData().inBackground(callback).forPath(path);
+        }
+        if (!remaining.await(readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Timed out reading feature switch nodes");
+        }
+        if (failure.get() != KeeperException.Code.OK.intValue()) {
+            throw KeeperException.create(KeeperException.Code.get(failure.get()));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,164 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class FeatureSwitchBackendTest {
+
+    @Test
+    public void testInMemoryBackend() throws Exception {
+        InMemoryFeatureSwitchBackend backend = new InMemoryFeatureSwitchBackend().set("X", "true").set("X/myApp", "false");
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setBackend(backend).setApplicationName("myApp").disableHostnameSubKey().start();
+        assertNull(cfs.getCuratorFrameworkClient());
+        assertFalse(cfs.isEnabled("X"));
+
+        // changes are applied before set() and remove() return
+        backend.remove("X/myApp");
+        assertTrue(cfs.isEnabled("X"));
+        backend.set("Y", "42");
+        assertEquals(42, cfs.getInt("Y", 0));
+        backend.set("Y/myApp", "7");
+        assertEquals(7, cfs.getInt("Y", 0));
+        backend.set("Z", "a=b"); // a string value, not a rule
+        assertEquals("a=b", cfs.getString("Z", null));
+        assertFalse(cfs.isEnabled("Z"));
+        assertFalse(cfs.isStale());
+        cfs.stop();
+    }
+
+    @Test
+    public void testFileBackend() throws Exception {
+        File file = File.createTempFile("zkfss", ".properties");
+        try {
+            write(file, "X=true\nY/myApp=percent=100\n");
+            ZKFeatureSwitchService cfs =
+                    new ZKFeatureSwitchService().setBackend(new FileFeatureSwitchBackend(file)).setApplicationName("myApp")
+                            .disableHostnameSubKey().start();
+            assertTrue(cfs.isEnabled("X"));
+            assertFalse(cfs.isEnabled("Y"));
+            assertTrue(cfs.isEnabled("Y", "alice"));
+
+            write(file, "X=false\n");
+
+            // the file is watched, but how soon a change is seen depends on the platform
+            long deadline = System.currentTimeMillis() + 20000;
+            while (cfs.isEnabled("X") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertFalse(cfs.isEnabled("X"));
+            cfs.stop();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFileBackendNotifiesOutsideTheLock() throws Exception {
+        File file = File.createTempFile("zkfss", ".properties");
+        try {
+            write(file, "X=true\n");
+            final FileFeatureSwitchBackend backend = new FileFeatureSwitchBackend(file);
+            backend.start();
+            final CountDownLatch started = new CountDownLatch(1);
+            backend.watch("X", new FeatureSwitchBackend.Listener() {
+
+                public void nodeChanged(byte[] data, long modifiedMillis) {
+                    // e.g. a listener starting another service that shares the backend, on another thread
+                    Thread thread = new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                backend.start();
+                                started.countDown();
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    };
+                    thread.start();
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            write(file, "X=false\n");
+            backend.reload();
+            assertEquals(0, started.getCount());
+            backend.close();
+            backend.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSlowNodeReadDoesNotHoldUpOtherFeatureSwitches() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        InMemoryFeatureSwitchBackend backend = new InMemoryFeatureSwitchBackend() {
+
+            @Override
+            public Watch watch(String node, Listener listener) {
+                if (node.equals("SLOW")) {
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.watch(node, listener);
+            }
+        };
+        backend.set("SLOW", "true").set("X", "true");
+        final ZKFeatureSwitchService cfs = new ZKFeatureSwitchService().setBackend(backend).disableHostnameSubKey().start();
+        Thread slowLookup = new Thread() {
+
+            @Override
+            public void run() {
+                cfs.isEnabled("SLOW");
+            }
+        };
+        slowLookup.start();
+        reading.await();
+
+        assertTrue(cfs.isEnabled("X"));
+        assertTrue(cfs.bind("X").isEnabled());
+        backend.set("X", "false");
+        assertFalse(cfs.snapshot().isEnabled("X"));
+
+        release.countDown();
+        slowLookup.join();
+        assertTrue(cfs.isEnabled("SLOW"));
+        cfs.stop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBackendCanNotBeCombinedWithPreload() throws Exception {
+        new ZKFeatureSwitchService().setBackend(new InMemoryFeatureSwitchBackend()).enablePreload().start();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+}
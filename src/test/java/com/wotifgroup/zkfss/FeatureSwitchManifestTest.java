@@ -0,0 +1,57 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FeatureSwitchManifestTest {
+
+    @Test
+    public void testSmallManifestIsHeldInOneNode() throws Exception {
+        Map<String, byte[]> nodes = new HashMap<String, byte[]>();
+        nodes.put("X", "true".getBytes());
+        nodes.put("X/myApp", "false".getBytes());
+        FeatureSwitchManifest manifest = FeatureSwitchManifest.build(null, nodes);
+        assertEquals(1, manifest.getVersion());
+        assertEquals(0, manifest.getChunkCount());
+
+        FeatureSwitchManifest read = FeatureSwitchManifest.read(null, "/zkfss.manifest", manifest.encode(), null);
+        assertEquals(1, read.getVersion());
+        assertEquals(2, read.getNodes().size());
+        assertArrayEquals("false".getBytes(), read.getNodes().get("X/myApp"));
+
+        nodes.remove("X/myApp");
+        assertEquals(2, FeatureSwitchManifest.build(read, nodes).getVersion());
+    }
+
+    @Test
+    public void testLargeManifestIsSplitIntoChunksOfFeatureSwitches() throws Exception {
+        Map<String, byte[]> nodes = new HashMap<String, byte[]>();
+        for (int i = 0; i < 300; i++) {
+            nodes.put("switch" + i, new byte[5000]);
+            nodes.put("switch" + i + "/myApp", "true".getBytes());
+        }
+        FeatureSwitchManifest manifest = FeatureSwitchManifest.build(null, nodes);
+        assertEquals(2, manifest.getChunkCount());
+        assertEquals(nodes.size(), manifest.getNodes().size());
+        assertTrue(manifest.encode().length < 100);
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            assertTrue(manifest.isChunkChanged(i));
+            assertTrue(manifest.encodeChunk(i).length <= FeatureSwitchManifest.MAX_NODE_BYTES);
+        }
+        assertEquals(FeatureSwitchManifest.chunkOf("switch7", 2), FeatureSwitchManifest.chunkOf("switch7/myApp", 2));
+
+        // only the chunk holding the changed feature switch changes
+        nodes.put("switch7/myApp", "false".getBytes());
+        FeatureSwitchManifest next = FeatureSwitchManifest.build(manifest, nodes);
+        int changedChunk = FeatureSwitchManifest.chunkOf("switch7", 2);
+        assertTrue(next.isChunkChanged(changedChunk));
+        assertFalse(next.isChunkChanged(1 - changedChunk));
+    }
+}
@@ -0,0 +1,92 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FeatureSwitchRuleTest {
+
+    @Test
+    public void testBooleanValues() {
+        assertSame(FeatureSwitchRule.TRUE, FeatureSwitchRule.parse("true", "X"));
+        assertSame(FeatureSwitchRule.TRUE, FeatureSwitchRule.parse("1", "X"));
+        assertSame(FeatureSwitchRule.FALSE, FeatureSwitchRule.parse("FALSE", "X"));
+        assertSame(FeatureSwitchRule.FALSE, FeatureSwitchRule.parse("0", "X"));
+        assertNull(FeatureSwitchRule.parse("yes", "X"));
+        assertTrue(FeatureSwitchRule.TRUE.isEnabled("alice"));
+        assertTrue(FeatureSwitchRule.TRUE.isEnabled(null));
+    }
+
+    @Test
+    public void testAllowAndDenyLists() {
+        FeatureSwitchRule rule = FeatureSwitchRule.parse("percent=100; allow=alice,bob; deny=bob,carol", "X");
+        assertTrue(rule.isEnabled("alice"));
+        assertFalse(rule.isEnabled("bob"));
+        assertFalse(rule.isEnabled("carol"));
+        assertTrue(rule.isEnabled("dave"));
+        assertFalse(rule.isEnabled(null));
+        assertFalse(rule.getValue());
+    }
+
+    @Test
+    public void testPercentageRollout() {
+        FeatureSwitchRule rule = FeatureSwitchRule.parse("percent=25", "X");
+        int enabled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (rule.isEnabled("user" + i)) {
+                enabled++;
+            }
+        }
+        assertTrue("enabled for " + enabled, enabled > 2250 && enabled < 2750);
+
+        // the same ids stay enabled as the rollout grows
+        FeatureSwitchRule wider = FeatureSwitchRule.parse("percent=50", "X");
+        for (int i = 0; i < 10000; i++) {
+            if (rule.isEnabled("user" + i)) {
+                assertTrue(wider.isEnabled("user" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testSeedAndBuckets() {
+        FeatureSwitchRule rule1 = FeatureSwitchRule.parse("percent=10;seed=cohort", "X");
+        FeatureSwitchRule rule2 = FeatureSwitchRule.parse("percent=10;seed=cohort", "Y");
+        FeatureSwitchRule rule3 = FeatureSwitchRule.parse("percent=10", "Y");
+        int differences = 0;
+        for (int i = 0; i < 1000; i++) {
+            String id = "user" + i;
+            assertEquals(rule1.isEnabled(id), rule2.isEnabled(id));
+            if (rule1.isEnabled(id) != rule3.isEnabled(id)) {
+                differences++;
+            }
+        }
+        assertTrue(differences > 0);
+
+        int bucket = rule1.bucket("alice");
+        FeatureSwitchRule cohort = FeatureSwitchRule.parse("seed=cohort;buckets=" + bucket + "-" + bucket, "X");
+        assertTrue(cohort.isEnabled("alice"));
+    }
+
+    @Test
+    public void testValuesHoldingEqualsAreNotAllRules() {
+        assertNull(FeatureSwitchRule.parse("a=b", "X"));
+        assertNull(FeatureSwitchRule.parse("colour=red;percent=10", "X"));
+        assertNull(FeatureSwitchRule.parse("x;percent=10", "X"));
+        assertTrue(FeatureSwitchRule.parse(" percent = 100 ", "X").isEnabled("alice"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentage() {
+        FeatureSwitchRule.parse("percent=101", "X");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownClause() {
+        FeatureSwitchRule.parse("percent=10;colour=red", "X");
+    }
+}
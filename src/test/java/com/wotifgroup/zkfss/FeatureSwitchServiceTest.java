@@ -0,0 +1,71 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FeatureSwitchServiceTest {
+
+    private enum Switches {
+        X, Y
+    }
+
+    @Test
+    public void testDefaultMethodsUseIsEnabled() throws Exception {
+        // an implementation written against the original interface
+        final Set<String> enabled = new HashSet<String>();
+        enabled.add("X");
+        FeatureSwitchService service = new FeatureSwitchService() {
+
+            public boolean isEnabled(String key) {
+                return enabled.contains(key);
+            }
+        };
+
+        assertTrue(service.isEnabled("X", false));
+        assertFalse(service.isEnabled("Y", true));
+        assertTrue(service.isEnabled("X", "alice"));
+        assertTrue(service.isEnabledAsync("X").get());
+
+        FeatureSwitch x = service.bind("X");
+        assertEquals("X", x.getKey());
+        assertTrue(x.isEnabled());
+        enabled.remove("X");
+        assertFalse(x.isEnabled());
+
+        enabled.add("Y");
+        FeatureSwitchSet<Switches> switches = service.bind(Switches.class);
+        assertFalse(switches.isEnabled(Switches.X));
+        assertTrue(switches.isEnabled(Switches.Y, "alice"));
+    }
+
+    @Test
+    public void testDefaultSnapshotKeepsFirstValues() throws Exception {
+        final Set<String> enabled = new HashSet<String>();
+        enabled.add("X");
+        FeatureSwitchService service = new FeatureSwitchService() {
+
+            public boolean isEnabled(String key) {
+                return enabled.contains(key);
+            }
+        };
+
+        FeatureSwitchSnapshot snapshot = service.snapshot();
+        assertTrue(snapshot.isEnabled("X"));
+        assertFalse(snapshot.isEnabled("Y"));
+        enabled.remove("X");
+        enabled.add("Y");
+        assertTrue(snapshot.isEnabled("X"));
+        assertFalse(snapshot.isEnabled("Y"));
+        assertEquals(2, snapshot.getValues().size());
+
+        snapshot = service.snapshot();
+        assertFalse(snapshot.isEnabled("X"));
+        assertTrue(snapshot.isEnabled("Y"));
+    }
+}
@@ -0,0 +1,42 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class FeatureSwitchValueTest {
+
+    @Test
+    public void testParse() {
+        FeatureSwitchValue value = FeatureSwitchValue.parse(" 42 ");
+        assertEquals(42, value.getInt(0));
+        assertEquals(42L, value.getLong(0));
+        assertEquals(42.0, value.getDouble(0), 0);
+        assertEquals(" 42 ", value.getString(null));
+
+        value = FeatureSwitchValue.parse("5000000000");
+        assertEquals(-1, value.getInt(-1));
+        assertEquals(5000000000L, value.getLong(-1));
+
+        value = FeatureSwitchValue.parse("abc");
+        assertEquals(-1, value.getLong(-1));
+        assertEquals(-1.0, value.getDouble(-1), 0);
+        assertEquals("abc", value.getString(null));
+    }
+
+    @Test
+    public void testResolveEachTypeInPrecedenceOrder() {
+        FeatureSwitchValue text = FeatureSwitchValue.parse("abc");
+        FeatureSwitchValue decimal = FeatureSwitchValue.parse("0.5");
+        FeatureSwitchValue integer = FeatureSwitchValue.parse("7");
+
+        FeatureSwitchValue value = FeatureSwitchValue.resolve(new FeatureSwitchValue[] { null, text, decimal, integer });
+        assertEquals("abc", value.getString(null));
+        assertEquals(0.5, value.getDouble(0), 0);
+        assertEquals(7, value.getInt(0));
+
+        assertSame(integer, FeatureSwitchValue.resolve(new FeatureSwitchValue[] { integer, text }));
+        assertSame(FeatureSwitchValue.NONE, FeatureSwitchValue.resolve(new FeatureSwitchValue[] { null, null }));
+    }
+}
@@ -0,0 +1,196 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+public class LocalReadEndpointTest {
+
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+
+    @Test
+    public void testLag() {
+        assertEquals(0, LocalReadEndpoint.lag(0x100000010L, 0x100000010L));
+        assertEquals(5, LocalReadEndpoint.lag(0x10000000aL, 0x10000000fL));
+        assertEquals(0, LocalReadEndpoint.lag(0x10000000fL, 0x10000000aL)); // ahead of the server read earlier
+        assertEquals(Long.MAX_VALUE, LocalReadEndpoint.lag(0x1000000ffL, 0x200000001L)); // before a leader election
+    }
+
+    @Test
+    public void testFailoverToEnsembleAndBack() throws Exception {
+        // two servers with different values stand in for the ensemble and the local endpoint, to tell which one is read
+        TestingServer ensemble = new TestingServer();
+        TestingServer local = new TestingServer();
+        try {
+            setValue(ensemble, FALSE);
+            setValue(local, TRUE);
+            ZKFeatureSwitchService cfs =
+                    new ZKFeatureSwitchService().setConnectString(ensemble.getConnectString())
+                            .setLocalReadConnectString(local.getConnectString()).setLocalReadCheckMillis(200)
+                            .setConnectionTimeoutMillis(2000).setResyncJitterMillis(0).disableHostnameSubKey().start();
+            assertTrue(cfs.isReadingLocally());
+            assertTrue(cfs.isEnabled("X"));
+            // connected to the ensemble, whichever endpoint is read
+            assertEquals("false", new String(cfs.getCuratorFrameworkClient().getData().forPath("/zkfss/X")));
+
+            // reads move to the ensemble while the local endpoint is down
+            local.stop();
+            for (int i = 0; i < 100 && cfs.isReadingLocally(); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(cfs.isReadingLocally());
+            waitFor(cfs, false);
+
+            // and back once it is up again
+            local.restart();
+            for (int i = 0; i < 100 && !cfs.isReadingLocally(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(cfs.isReadingLocally());
+            waitFor(cfs, true);
+            cfs.stop();
+        } finally {
+            local.close();
+            ensemble.close();
+        }
+    }
+
+    @Test
+    public void testFailoverDuringColdLookup() throws Exception {
+        TestingServer ensemble = new TestingServer();
+        final TestingServer local = new TestingServer();
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            setValue(ensemble, FALSE);
+            setValue(local, TRUE);
+            final ZKFeatureSwitchService cfs = new ZKFeatureSwitchService() {
+
+                @Override
+                CuratorFramework newClient(String clientConnectString) {
+                    if (!clientConnectString.equals(local.getConnectString())) {
+                        return super.newClient(clientConnectString);
+                    }
+                    // the first read of X from the local endpoint is held up until the reads have moved to the ensemble
+                    CuratorFramework newClient =
+                            CuratorFrameworkFactory.builder().connectString(clientConnectString)
+                                    .retryPolicy(new RetryOneTime(100)).zookeeperFactory(new ZookeeperFactory() {
+
+                                        public ZooKeeper newZooKeeper(String connectString, int sessionTimeout,
+                                                Watcher watcher, boolean canBeReadOnly) throws Exception {
+                                            return new SlowZooKeeper(connectString, sessionTimeout, watcher,
+                                                    canBeReadOnly, reading, release);
+                                        }
+                                    }).build();
+                    newClient.start();
+                    return newClient;
+                }
+            };
+            cfs.setConnectString(ensemble.getConnectString()).setLocalReadConnectString(local.getConnectString())
+                    .setLocalReadCheckMillis(200).setConnectionTimeoutMillis(2000).setResyncJitterMillis(0)
+                    .disableHostnameSubKey().start();
+            assertTrue(cfs.isReadingLocally());
+
+            final AtomicBoolean lookup = new AtomicBoolean(true);
+            Thread coldLookup = new Thread() {
+
+                @Override
+                public void run() {
+                    lookup.set(cfs.isEnabled("X"));
+                }
+            };
+            coldLookup.start();
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            local.stop();
+            for (int i = 0; i < 100 && cfs.isReadingLocally(); i++) {
+                Thread.sleep(100);
+            }
+            assertFalse(cfs.isReadingLocally());
+
+            // the watch set through the closed client is dropped, and X is read from the ensemble
+            release.countDown();
+            coldLookup.join(10000);
+            assertFalse(lookup.get());
+            assertFalse(cfs.isEnabled("X"));
+
+            CuratorFramework client = CuratorFrameworkFactory.newClient(ensemble.getConnectString(), new RetryOneTime(100));
+            client.start();
+            try {
+                client.setData().forPath("/zkfss/X", TRUE);
+            } finally {
+                client.close();
+            }
+            waitFor(cfs, true);
+            cfs.stop();
+        } finally {
+            release.countDown();
+            local.close();
+            ensemble.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotWithPreload() {
+        new ZKFeatureSwitchService().setConnectString("localhost:2181").setLocalReadConnectString("localhost:2182")
+                .enablePreload().start();
+    }
+
+    private static void setValue(TestingServer server, byte[] value) throws Exception {
+        CuratorFramework client = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+        client.start();
+        try {
+            client.create().creatingParentsIfNeeded().forPath("/zkfss/X", value);
+        } finally {
+            client.close();
+        }
+    }
+
+    private static class SlowZooKeeper extends ZooKeeper {
+
+        private final CountDownLatch reading;
+        private final CountDownLatch release;
+
+        SlowZooKeeper(String connectString, int sessionTimeout, Watcher watcher, boolean canBeReadOnly,
+                CountDownLatch reading, CountDownLatch release) throws IOException {
+            super(connectString, sessionTimeout, watcher, canBeReadOnly);
+            this.reading = reading;
+            this.release = release;
+        }
+
+        @Override
+        public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+            byte[] data = super.getData(path, watcher, stat);
+            if (path.equals("/zkfss/X") && reading.getCount() > 0) {
+                reading.countDown();
+                release.await();
+            }
+            return data;
+        }
+    }
+
+    private static void waitFor(ZKFeatureSwitchService cfs, boolean enabled) throws InterruptedException {
+        for (int i = 0; i < 300 && (cfs.isEnabled("X") != enabled || cfs.isStale()); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(enabled, cfs.isEnabled("X"));
+    }
+}
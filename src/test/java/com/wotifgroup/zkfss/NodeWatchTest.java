@@ -0,0 +1,85 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+
+public class NodeWatchTest {
+
+    private TestingServer ts;
+    private CuratorFramework client;
+
+    @Before
+    public void setup() throws Exception {
+        ts = new TestingServer();
+        client = CuratorFrameworkFactory.newClient(ts.getConnectString(), new RetryOneTime(100));
+        client.start();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        client.close();
+        ts.close();
+    }
+
+    @Test
+    public void testClosedWatchIsReopenedUntilItFires() throws Exception {
+        client.create().forPath("/a", "1".getBytes());
+        QueueListener first = new QueueListener();
+        NodeWatch watch = new NodeWatch(client, "/a", null, first);
+        watch.start();
+
+        NodeWatch.Pool pool = new NodeWatch.Pool();
+        watch.close(pool);
+        assertEquals(1, pool.size());
+
+        QueueListener second = new QueueListener();
+        assertSame(watch, pool.reopen("/a", second));
+        assertEquals(0, pool.size());
+        assertEquals("1", new String(watch.getCurrentData().getData()));
+
+        client.setData().forPath("/a", "2".getBytes());
+        assertEquals("2", second.take());
+
+        // a watch that fires while closed can not be reopened
+        watch.close(pool);
+        client.setData().forPath("/a", "3".getBytes());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.size());
+        assertNull(pool.reopen("/a", new QueueListener()));
+
+        assertTrue(first.changes.isEmpty());
+        assertTrue(second.changes.isEmpty());
+    }
+
+    private static class QueueListener implements NodeWatch.Listener {
+
+        private final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+
+        public void nodeChanged(NodeWatch watch, ChildData data) {
+            changes.add(data == null ? "" : new String(data.getData()));
+        }
+
+        String take() throws InterruptedException {
+            return changes.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
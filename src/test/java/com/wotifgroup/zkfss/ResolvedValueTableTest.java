@@ -0,0 +1,57 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResolvedValueTableTest {
+
+    @Test
+    public void testValuesByIdBeyondInitialCapacity() {
+        ResolvedValueTable table = new ResolvedValueTable();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, table.allocate());
+            table.set(i, i % 3 == 0 ? FeatureSwitchRule.TRUE : FeatureSwitchRule.FALSE);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 3 == 0, table.isEnabled(i));
+        }
+        assertEquals(1000, table.size());
+    }
+
+    @Test
+    public void testReleasedIdsAreReused() {
+        ResolvedValueTable table = new ResolvedValueTable();
+        table.allocate();
+        int id = table.allocate();
+        table.allocate();
+        table.set(id, FeatureSwitchRule.TRUE);
+
+        table.release(id);
+        assertEquals(id, table.allocate());
+        assertFalse(table.isEnabled(id));
+        assertSame(FeatureSwitchRule.FALSE, table.getRule(id));
+    }
+
+    @Test
+    public void testCopyIsNotChanged() {
+        ResolvedValueTable table = new ResolvedValueTable();
+        FeatureSwitchRule rule = FeatureSwitchRule.parse("percent=50", "X");
+        int id = table.allocate();
+        table.set(id, rule);
+        int other = table.allocate();
+        table.set(other, FeatureSwitchRule.TRUE);
+
+        ResolvedValueTable copy = table.copy();
+        table.set(id, FeatureSwitchRule.TRUE);
+        table.set(other, FeatureSwitchRule.FALSE);
+
+        assertSame(rule, copy.getRule(id));
+        assertFalse(copy.isEnabled(id));
+        assertTrue(copy.isEnabled(other));
+        assertTrue(table.isEnabled(id));
+    }
+}
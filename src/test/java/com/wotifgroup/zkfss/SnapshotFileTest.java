@@ -0,0 +1,64 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotFileTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("zkfss", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "snapshot");
+    }
+
+    @After
+    public void teardown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testReadMissingFile() throws Exception {
+        assertNull(new SnapshotFile(file).read());
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Map<String, Boolean> values = new HashMap<String, Boolean>();
+        values.put("a", true);
+        values.put("b", false);
+        SnapshotFile snapshot = new SnapshotFile(file);
+        snapshot.write(values);
+        assertEquals(values, snapshot.read());
+
+        values.remove("a");
+        snapshot.write(values);
+        assertEquals(values, snapshot.read());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalidFile() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("true".getBytes());
+        out.close();
+        new SnapshotFile(file).read();
+    }
+}
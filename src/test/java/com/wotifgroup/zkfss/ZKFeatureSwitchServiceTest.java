@@ -1,10 +1,24 @@
 package com.wotifgroup.zkfss;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Before;
@@ -12,8 +26,12 @@ import org.junit.Test;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.CuratorWatcher;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.KillSession;
 import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.WatchedEvent;
 
 public class ZKFeatureSwitchServiceTest {
 
@@ -83,6 +101,28 @@ public class ZKFeatureSwitchServiceTest {
         cfs.stop();
     }
 
+    @Test
+    public void testNamespacesResolvedInPrecedenceOrder() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace("/team/").addFeatureSwitchNamespace("/platform/")
+                        .setApplicationName(TEST_APPLICATION_NAME).disableHostnameSubKey().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().creatingParentsIfNeeded().forPath("/platform/A", TRUE);
+        curatorFrameworkClient.create().creatingParentsIfNeeded().forPath("/platform/B", TRUE);
+        curatorFrameworkClient.create().creatingParentsIfNeeded().forPath("/platform/B/" + TEST_APPLICATION_NAME, TRUE);
+        curatorFrameworkClient.create().creatingParentsIfNeeded().forPath("/team/B", FALSE);
+        assertTrue(cfs.isEnabled("A"));
+        assertFalse(cfs.isEnabled("B")); // team over platform, whatever the override level
+
+        curatorFrameworkClient.setData().forPath("/team/B", new byte[0]);
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled("B"));
+        curatorFrameworkClient.setData().forPath("/team/A", FALSE);
+        Thread.sleep(200);
+        assertFalse(cfs.isEnabled("A"));
+        cfs.stop();
+    }
+
     @Test
     public void testHostnameOverrideForDisableSubKey() throws Exception {
         ZKFeatureSwitchService cfs =
@@ -196,6 +236,656 @@ public class ZKFeatureSwitchServiceTest {
         cfs.stop();
     }
 
+    @Test
+    public void testRemovedOverrideFallsBackToFeatureSwitchValue() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).enableHostnameSubKey().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, FALSE);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        curatorFrameworkClient.delete().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        cfs.stop();
+    }
+
+    @Test
+    public void testOverrideDimensions() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).disableHostnameSubKey()
+                        .addOverrideDimension("datacenter", "D").start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, FALSE);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/D", TRUE);
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+
+        // the watch on "XYZ/D" already created "XYZ" as a container
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, FALSE);
+        Thread.sleep(200);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME + "/D", TRUE);
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        cfs.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverrideDimensionValueMustBeASingleNode() throws Exception {
+        new ZKFeatureSwitchService().addOverrideDimension("datacenter", "a/b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverrideDimensionsAreLimited() throws Exception {
+        ZKFeatureSwitchService cfs = new ZKFeatureSwitchService();
+        for (int i = 0; i <= ZKFeatureSwitchService.MAX_OVERRIDE_DIMENSIONS; i++) {
+            cfs.addOverrideDimension("dimension" + i, "D");
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOverrideDimensionsIncludeApplicationAndHost() throws Exception {
+        ZKFeatureSwitchService cfs = new ZKFeatureSwitchService().setApplicationName(TEST_APPLICATION_NAME);
+        for (int i = 0; i < ZKFeatureSwitchService.MAX_OVERRIDE_DIMENSIONS - 1; i++) {
+            cfs.addOverrideDimension("dimension" + i, "D");
+        }
+        cfs.start();
+    }
+
+    @Test
+    public void testRolloutRule() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).disableHostnameSubKey().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, "allow=alice".getBytes());
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2, "alice"));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2, "bob"));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        FeatureSwitch featureSwitch = cfs.bind(FEATURE_SWITCH2);
+
+        // the application override has a rule of its own
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, "allow=bob".getBytes());
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2, "alice"));
+        assertTrue(featureSwitch.isEnabled("bob"));
+
+        // plain booleans apply regardless of context
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, TRUE);
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2, "alice"));
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2, null));
+        cfs.stop();
+    }
+
+    @Test
+    public void testTypedValues() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).disableHostnameSubKey().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, "250".getBytes());
+        assertEquals(250, cfs.getInt(FEATURE_SWITCH2, 10));
+        assertEquals(250L, cfs.getLong(FEATURE_SWITCH2, 10L));
+        assertEquals(250.0, cfs.getDouble(FEATURE_SWITCH2, 1.5), 0);
+        assertEquals("250", cfs.getString(FEATURE_SWITCH2, null));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        assertEquals(10, cfs.getInt(FEATURE_SWITCH1, 10));
+
+        // a non-numeric override applies to strings only
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, "caf\u00e9".getBytes("UTF-8"));
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+
+        assertEquals("caf\u00e9", cfs.getString(FEATURE_SWITCH2, null));
+        assertEquals(250, cfs.getInt(FEATURE_SWITCH2, 10));
+
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, "0.75".getBytes());
+        Thread.sleep(200);
+        assertEquals(0.75, cfs.getDouble(FEATURE_SWITCH2, 1.5), 0);
+        assertEquals(250, cfs.getInt(FEATURE_SWITCH2, 10));
+        cfs.stop();
+    }
+
+    @Test
+    public void testNonBlockingLookup() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).disableHostnameSubKey()
+                        .enableNonBlockingLookup().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+
+        // the first lookups return the defaults while the feature switches are loaded in the background
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH1, true));
+
+        assertTrue(cfs.isEnabledAsync(FEATURE_SWITCH2).get(5, TimeUnit.SECONDS));
+        assertFalse(cfs.isEnabledAsync(FEATURE_SWITCH1).get(5, TimeUnit.SECONDS));
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH1, true));
+        cfs.stop();
+    }
+
+    @Test
+    public void testNamespaceTreeWatchLoadsExistingFeatureSwitchesAtStart() throws Exception {
+        CuratorFramework client = CuratorFrameworkFactory.newClient("localhost:2181", new ExponentialBackoffRetry(100, 1));
+        client.start();
+        client.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        client.create().forPath(ZK_PATH_FS2, FALSE);
+        client.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, TRUE);
+        client.create().forPath(ZK_PATH_FS2 + "/someOtherApplication", FALSE);
+
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).enableNamespaceTreeWatch().setCuratorFrameworkClient(client)
+                        .start();
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH1));
+        cfs.stop();
+    }
+
+    @Test
+    public void testNamespaceTreeWatchOverrideChanges() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).enableHostnameSubKey().enableNamespaceTreeWatch().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + hostname, TRUE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, TRUE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME + "/" + hostname, FALSE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        curatorFrameworkClient.delete().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME + "/" + hostname);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        cfs.stop();
+    }
+
+    @Test
+    public void testPreloadLoadsExistingFeatureSwitchesAtStart() throws Exception {
+        CuratorFramework client = CuratorFrameworkFactory.newClient("localhost:2181", new ExponentialBackoffRetry(100, 1));
+        client.start();
+        client.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        client.create().forPath(ZK_PATH_FS2, FALSE);
+        client.create().forPath(ZK_PATH_FS2 + "/" + hostname, TRUE);
+
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).enablePreload()
+                        .setCuratorFrameworkClient(client).start();
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH1));
+
+        // switches created after start are watched without a lookup
+        client.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, TRUE);
+        client.setData().forPath(ZK_PATH_FS2 + "/" + hostname, FALSE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH1));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        cfs.stop();
+    }
+
+    @Test
+    public void testPreloadDropsSnapshotValuesOfRemovedFeatureSwitches() throws Exception {
+        File snapshotFile = File.createTempFile("zkfss", ".snapshot");
+        snapshotFile.delete();
+        try {
+            ZKFeatureSwitchService cfs =
+                    new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                            .setSnapshotFile(snapshotFile).start();
+            CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+            curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+            curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+            assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+            cfs.stop();
+
+            CuratorFramework client = CuratorFrameworkFactory.newClient("localhost:2181", new ExponentialBackoffRetry(100, 1));
+            client.start();
+            client.delete().forPath(ZK_PATH_FS2);
+            client.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, TRUE);
+
+            cfs =
+                    new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).enablePreload()
+                            .setSnapshotFile(snapshotFile).setCuratorFrameworkClient(client).start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cfs.isStale() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertFalse(cfs.isStale());
+            assertTrue(cfs.isEnabled(FEATURE_SWITCH1));
+            assertFalse(cfs.snapshot().getValues().containsKey(FEATURE_SWITCH2));
+
+            // preloaded switches are watched
+            client.setData().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, FALSE);
+            Thread.sleep(200);
+            assertFalse(cfs.isEnabled(FEATURE_SWITCH1));
+            cfs.stop();
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    @Test
+    public void testSnapshotServesValuesWithoutZookeeper() throws Exception {
+        File snapshotFile = File.createTempFile("zkfss", ".snapshot");
+        snapshotFile.delete();
+        try {
+            ZKFeatureSwitchService cfs =
+                    new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                            .setSnapshotFile(snapshotFile).start();
+            CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+            curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+            curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+            assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+            cfs.stop();
+            ts.stop();
+
+            cfs =
+                    new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                            .setSnapshotFile(snapshotFile).setConnectionTimeoutMillis(500).start();
+            assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+            cfs.stop();
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    @Test
+    public void testBoundFeatureSwitch() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        FeatureSwitch featureSwitch = cfs.bind(FEATURE_SWITCH2);
+        assertTrue(featureSwitch.isEnabled());
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + hostname, FALSE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertFalse(featureSwitch.isEnabled());
+        cfs.stop();
+    }
+
+    private enum TestFeatureSwitches {
+        Test, blah
+    }
+
+    @Test
+    public void testBoundFeatureSwitchSet() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        FeatureSwitchSet<TestFeatureSwitches> featureSwitches = cfs.bind(TestFeatureSwitches.class);
+        assertFalse(featureSwitches.isEnabled(TestFeatureSwitches.Test));
+        assertTrue(featureSwitches.isEnabled(TestFeatureSwitches.blah));
+        curatorFrameworkClient.setData().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, TRUE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertTrue(featureSwitches.isEnabled(TestFeatureSwitches.Test));
+        cfs.stop();
+    }
+
+    @Test
+    public void testSnapshotIsConsistent() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).disableHostnameSubKey()
+                        .start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+
+        FeatureSwitchSnapshot snapshot = cfs.snapshot();
+        assertSame(snapshot, cfs.snapshot());
+        assertEquals(Collections.singletonMap(FEATURE_SWITCH2, true), snapshot.getValues());
+
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2, FALSE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+
+        assertTrue(snapshot.isEnabled(FEATURE_SWITCH2));
+        FeatureSwitchSnapshot newSnapshot = cfs.snapshot();
+        assertFalse(newSnapshot.isEnabled(FEATURE_SWITCH2));
+        assertTrue(newSnapshot.getVersion() > snapshot.getVersion());
+
+        // unknown feature switches get the default without waiting, and are loaded in the background
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, TRUE);
+        assertFalse(newSnapshot.isEnabled(FEATURE_SWITCH1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cfs.snapshot().isEnabled(FEATURE_SWITCH1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(cfs.snapshot().isEnabled(FEATURE_SWITCH1));
+        assertFalse(newSnapshot.isEnabled(FEATURE_SWITCH1));
+        cfs.stop();
+    }
+
+    @Test
+    public void testNewFeatureSwitchesNotifiedAgainstUnknownDefault() throws Exception {
+        InMemoryFeatureSwitchBackend backend = new InMemoryFeatureSwitchBackend().set("X", "false").set("Y", "true");
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setBackend(backend).disableHostnameSubKey().enableNonBlockingLookup()
+                        .setUnknownFeatureSwitchDefault(true).start();
+        final BlockingQueue<Map<String, Boolean>> changes = new LinkedBlockingQueue<Map<String, Boolean>>();
+        cfs.addListener(new FeatureSwitchListener() {
+
+            public void featureSwitchesChanged(Map<String, Boolean> changed) {
+                changes.add(changed);
+            }
+        });
+
+        // both are true until loaded, so only X changes
+        assertTrue(cfs.isEnabled("X"));
+        assertTrue(cfs.isEnabled("Y"));
+        assertFalse(cfs.isEnabledAsync("X").get());
+        assertTrue(cfs.isEnabledAsync("Y").get());
+        assertEquals(Collections.singletonMap("X", false), changes.poll(5, TimeUnit.SECONDS));
+        assertNull(changes.poll(500, TimeUnit.MILLISECONDS));
+        cfs.stop();
+    }
+
+    @Test
+    public void testListenersNotifiedOfCoalescedChanges() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setListenerCoalesceMillis(100).start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, FALSE);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH1));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+
+        final BlockingQueue<Map<String, Boolean>> allChanges = new LinkedBlockingQueue<Map<String, Boolean>>();
+        final BlockingQueue<Map<String, Boolean>> keyChanges = new LinkedBlockingQueue<Map<String, Boolean>>();
+        cfs.addListener(new FeatureSwitchListener() {
+
+            public void featureSwitchesChanged(Map<String, Boolean> changes) {
+                allChanges.add(changes);
+            }
+        });
+        cfs.addListener(FEATURE_SWITCH2, new FeatureSwitchListener() {
+
+            public void featureSwitchesChanged(Map<String, Boolean> changes) {
+                keyChanges.add(changes);
+            }
+        });
+
+        curatorFrameworkClient.setData().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, TRUE);
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2, TRUE);
+
+        Map<String, Boolean> changes = allChanges.poll(2, TimeUnit.SECONDS);
+        assertEquals(2, changes.size());
+        assertTrue(changes.get(FEATURE_SWITCH1));
+        assertTrue(changes.get(FEATURE_SWITCH2));
+        assertEquals(Collections.singletonMap(FEATURE_SWITCH2, true), keyChanges.poll(2, TimeUnit.SECONDS));
+        assertNull(allChanges.poll(200, TimeUnit.MILLISECONDS));
+        cfs.stop();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).enableMetrics().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, FALSE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/" + TEST_APPLICATION_NAME, TRUE);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH1));
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2, TRUE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+
+        FeatureSwitchMetrics metrics = cfs.getMetrics();
+        assertEquals(2, metrics.getLookupMissCount());
+        assertEquals(1, metrics.getLookupCount());
+        assertEquals(Long.valueOf(1), metrics.getLookupCountsByLevel().get("application"));
+        assertEquals("application", metrics.getResolvedLevelsByKey().get(FEATURE_SWITCH2));
+        assertEquals("default", metrics.getResolvedLevelsByKey().get(FEATURE_SWITCH1));
+        assertEquals(8, metrics.getWatchCount());
+        assertEquals(2, metrics.getWatchSetupCount());
+        assertEquals(1, metrics.getUpdateCount());
+
+        ObjectName name =
+                new ObjectName("com.wotifgroup.zkfss:type=FeatureSwitchMetrics,namespace="
+                        + ObjectName.quote(TEST_FEATURE_SWITCH_NAMESPACE) + ",application=" + ObjectName.quote(TEST_APPLICATION_NAME));
+        assertEquals(8, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "WatchCount"));
+        cfs.stop();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testIdleFeatureSwitchesAreEvicted() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).disableHostnameSubKey()
+                        .setFeatureSwitchIdleTimeoutMillis(200).enableMetrics().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        FeatureSwitch featureSwitch = cfs.bind(FEATURE_SWITCH1);
+        assertEquals(2, cfs.getMetrics().getWatchCount());
+
+        Thread.sleep(600);
+        assertEquals(1, cfs.getMetrics().getWatchCount());
+
+        // evicted feature switches are loaded again, bound ones keep being updated
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2, FALSE);
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE + FEATURE_SWITCH1, TRUE);
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        assertTrue(featureSwitch.isEnabled());
+        assertEquals(2, cfs.getMetrics().getWatchCount());
+        cfs.stop();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFeatureSwitchesAreEvicted() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).disableHostnameSubKey()
+                        .setMaxFeatureSwitches(1).enableMetrics().start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH1));
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+
+        // no easy way to sync on change - just wait for a bit
+        Thread.sleep(200);
+        assertEquals(1, cfs.getMetrics().getWatchCount());
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertEquals(2, cfs.getMetrics().getWatchSetupCount());
+        cfs.stop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEvictionCanNotBeCombinedWithPreload() throws Exception {
+        new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setMaxFeatureSwitches(10)
+                .enablePreload().start();
+    }
+
+    @Test
+    public void testFeatureSwitchesReloadedAfterSessionExpiry() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setResyncJitterMillis(0)
+                        .start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, TRUE);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+        assertFalse(cfs.isStale());
+
+        CuratorFramework admin = CuratorFrameworkFactory.newClient(ts.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        admin.start();
+        KillSession.kill(curatorFrameworkClient.getZookeeperClient().getZooKeeper(), ts.getConnectString());
+        admin.setData().forPath(ZK_PATH_FS2, FALSE);
+
+        // the client only finds out its session expired when it reconnects, which takes a few seconds
+        long deadline = System.currentTimeMillis() + 20000;
+        while (cfs.isEnabled(FEATURE_SWITCH2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+
+        assertFalse(cfs.isStale());
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+
+        // and the watch is back
+        admin.setData().forPath(ZK_PATH_FS2, TRUE);
+        Thread.sleep(200);
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+
+        admin.close();
+        cfs.stop();
+    }
+
+    @Test
+    public void testFeatureSwitchReloadedAfterConnectionLostBeforeItWasRead() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setCuratorFrameworkConnectionRetryPolicy(new RetryOneTime(100)).setConnectionTimeoutMillis(1000)
+                        .start();
+        CuratorFramework curatorFrameworkClient = cfs.getCuratorFrameworkClient();
+        curatorFrameworkClient.create().forPath(TEST_FEATURE_SWITCH_NAMESPACE_NODE);
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2, FALSE);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+
+        // hold up the Zookeeper event thread, so the change is only handled once the server is down
+        final CountDownLatch release = new CountDownLatch(1);
+        curatorFrameworkClient.checkExists().usingWatcher(new CuratorWatcher() {
+
+            public void process(WatchedEvent event) throws Exception {
+                release.await();
+            }
+        }).forPath("/block");
+        curatorFrameworkClient.create().forPath("/block");
+        CuratorFramework admin = CuratorFrameworkFactory.newClient(ts.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        admin.start();
+        admin.setData().forPath(ZK_PATH_FS2, TRUE);
+        admin.close();
+        ts.stop();
+        release.countDown();
+
+        // the read after the change fails, and the session survives the restart
+        Thread.sleep(4000);
+        ts.restart();
+
+        long deadline = System.currentTimeMillis() + 20000;
+        while (!cfs.isEnabled(FEATURE_SWITCH2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+        assertTrue(cfs.isEnabled(FEATURE_SWITCH2));
+
+        // and the watch is back
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2, FALSE);
+        Thread.sleep(200);
+        assertFalse(cfs.isEnabled(FEATURE_SWITCH2));
+        cfs.stop();
+    }
+
+    @Test
+    public void testSharedWatches() throws Exception {
+        ZKFeatureSwitchService cfs1 =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE)
+                        .setApplicationName(TEST_APPLICATION_NAME).disableHostnameSubKey().enableSharedWatches().start();
+        ZKFeatureSwitchService cfs2 =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setApplicationName("ABC")
+                        .disableHostnameSubKey().enableSharedWatches().start();
+        CuratorFramework curatorFrameworkClient = cfs1.getCuratorFrameworkClient();
+        assertSame(curatorFrameworkClient, cfs2.getCuratorFrameworkClient());
+
+        curatorFrameworkClient.create().creatingParentsIfNeeded().forPath(ZK_PATH_FS2, TRUE);
+        assertTrue(cfs1.isEnabled(FEATURE_SWITCH2));
+        assertTrue(cfs2.isEnabled(FEATURE_SWITCH2));
+
+        // the feature switch node is watched once, plus each application override node
+        SharedWatchRegistry registry = SharedWatchRegistry.acquire("localhost:2181", null, 0);
+        assertEquals(3, registry.getWatchCount());
+        registry.release();
+
+        curatorFrameworkClient.create().forPath(ZK_PATH_FS2 + "/ABC", FALSE);
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2, FALSE);
+        Thread.sleep(200);
+        assertFalse(cfs1.isEnabled(FEATURE_SWITCH2));
+        assertFalse(cfs2.isEnabled(FEATURE_SWITCH2));
+
+        // the remaining service keeps its watches and connection
+        cfs1.stop();
+        curatorFrameworkClient.setData().forPath(ZK_PATH_FS2 + "/ABC", TRUE);
+        Thread.sleep(200);
+        assertTrue(cfs2.isEnabled(FEATURE_SWITCH2));
+        cfs2.stop();
+    }
+
+    @Test
+    public void testWatchEventsAppliedOnExecutorWithLatestValuePerNode() throws Exception {
+        final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+        Executor executor = new Executor() {
+
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        };
+        InMemoryFeatureSwitchBackend backend = new InMemoryFeatureSwitchBackend().set("X", "1").set("Y", "false");
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setBackend(backend).disableHostnameSubKey().setWatchEventExecutor(executor)
+                        .start();
+        assertEquals(1, cfs.getInt("X", 0));
+        assertFalse(cfs.isEnabled("Y"));
+
+        for (int i = 2; i <= 100; i++) {
+            backend.set("X", Integer.toString(i));
+        }
+        backend.set("Y", "true");
+        assertEquals(1, cfs.getInt("X", 0));
+
+        // one task applies the latest value of each node
+        assertEquals(1, tasks.size());
+        tasks.take().run();
+        assertTrue(tasks.isEmpty());
+        assertEquals(100, cfs.getInt("X", 0));
+        assertTrue(cfs.isEnabled("Y"));
+        cfs.stop();
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testNoConfigurationChangeAllowedForRunningSystem() throws Exception {
         ZKFeatureSwitchService cfs =
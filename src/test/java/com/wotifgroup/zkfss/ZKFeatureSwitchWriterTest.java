@@ -0,0 +1,212 @@
+package com.wotifgroup.zkfss;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+public class ZKFeatureSwitchWriterTest {
+
+    private static final String TEST_FEATURE_SWITCH_NAMESPACE = "/foo/";
+    private TestingServer ts;
+    private CuratorFramework client;
+
+    @Before
+    public void setup() throws Exception {
+        ts = new TestingServer(2181);
+        client = CuratorFrameworkFactory.newClient(ts.getConnectString(), new ExponentialBackoffRetry(100, 3));
+        client.start();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        client.close();
+        ts.close();
+    }
+
+    @Test
+    public void testBatchIsSeenAsOneChange() throws Exception {
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setApplicationName("XYZ")
+                        .disableHostnameSubKey().start();
+        final BlockingQueue<Map<String, Boolean>> notifications = new LinkedBlockingQueue<Map<String, Boolean>>();
+        cfs.addListener(new FeatureSwitchListener() {
+
+            public void featureSwitchesChanged(Map<String, Boolean> changes) {
+                notifications.add(changes);
+            }
+        });
+        assertFalse(cfs.isEnabled("A"));
+        assertFalse(cfs.isEnabled("B"));
+
+        ZKFeatureSwitchWriter writer = new ZKFeatureSwitchWriter(client).setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE);
+        writer.batch().set("A", true).setOverride("B", "XYZ", true).commit();
+
+        Map<String, Boolean> changes = notifications.poll(5, TimeUnit.SECONDS);
+        assertEquals(2, changes.size());
+        assertTrue(cfs.isEnabled("A"));
+        assertTrue(cfs.isEnabled("B"));
+        assertArrayEquals(new byte[0], client.getData().forPath("/foo/B"));
+
+        writer.batch().set("A", false).removeOverride("B", "XYZ").commit();
+        changes = notifications.poll(5, TimeUnit.SECONDS);
+        assertEquals(2, changes.size());
+        assertFalse(cfs.isEnabled("A"));
+        assertFalse(cfs.isEnabled("B"));
+        cfs.stop();
+    }
+
+    @Test
+    public void testRulesAndTypedValues() throws Exception {
+        ZKFeatureSwitchWriter writer = new ZKFeatureSwitchWriter(client).setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE);
+        writer.batch().set("N", "42").setOverride("N", "XYZ", "7").set("L", "10000000000").set("S", "a=b")
+                .set("R", "percent=100;deny=bob").commit();
+        assertArrayEquals("percent=100;deny=bob".getBytes(), client.getData().forPath("/foo/R"));
+
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setApplicationName("XYZ")
+                        .disableHostnameSubKey().start();
+        assertEquals(7, cfs.getInt("N", 0));
+        assertEquals(10000000000L, cfs.getLong("L", 0));
+        assertEquals("a=b", cfs.getString("S", null));
+        assertTrue(cfs.isEnabled("R", "alice"));
+        assertFalse(cfs.isEnabled("R", "bob"));
+
+        writer.batch().removeOverride("N", "XYZ").set("R", "true").commit();
+        waitFor(cfs, "R", true);
+        // each node is applied by its own watch, so N may follow R
+        for (int i = 0; i < 100 && cfs.getInt("N", 0) != 42; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(42, cfs.getInt("N", 0));
+        cfs.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyValueIsRejected() {
+        new ZKFeatureSwitchWriter(client).batch().set("X", "");
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        ZKFeatureSwitchWriter writer = new ZKFeatureSwitchWriter(client).setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE);
+        writer.batch().set("A", true).setOverride("B", "XYZ", true).commit();
+        writer.enableManifest().rebuildManifest();
+
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setApplicationName("XYZ")
+                        .disableHostnameSubKey().enableManifest().start();
+        final BlockingQueue<Map<String, Boolean>> notifications = new LinkedBlockingQueue<Map<String, Boolean>>();
+        cfs.addListener(new FeatureSwitchListener() {
+
+            public void featureSwitchesChanged(Map<String, Boolean> changes) {
+                notifications.add(changes);
+            }
+        });
+        assertTrue(cfs.isEnabled("A"));
+        assertTrue(cfs.isEnabled("B"));
+
+        writer.batch().set("A", false).setOverride("B", "XYZ", false).commit();
+        assertEquals(2, notifications.poll(5, TimeUnit.SECONDS).size());
+        assertFalse(cfs.isEnabled("A"));
+        assertFalse(cfs.isEnabled("B"));
+
+        // a manifest too big for one node is split into chunks
+        String longSubKey = "XYZ/" + new String(new char[200]).replace('\0', 'x');
+        for (int b = 0; b < 6; b++) {
+            ZKFeatureSwitchWriter.Batch batch = writer.batch();
+            for (int i = b * 500; i < (b + 1) * 500; i++) {
+                batch.set("C" + i, true).setOverride("C" + i, longSubKey, false);
+            }
+            batch.commit();
+        }
+        assertTrue(client.getChildren().forPath("/foo.manifest").size() > 1);
+        waitFor(cfs, "C2999", true);
+        assertTrue(cfs.isEnabled("C7"));
+
+        writer.batch().setOverride("C7", "XYZ", false).commit();
+        waitFor(cfs, "C7", false);
+        assertTrue(cfs.isEnabled("C8"));
+
+        // rebuilt from scratch, the chunks do not all fit in one transaction
+        client.delete().deletingChildrenIfNeeded().forPath("/foo.manifest");
+        writer.rebuildManifest();
+        waitFor(cfs, "C2999", true);
+        assertFalse(cfs.isEnabled("C7"));
+        assertTrue(cfs.isEnabled("C8"));
+        cfs.stop();
+    }
+
+    private static void waitFor(ZKFeatureSwitchService cfs, String key, boolean enabled) throws InterruptedException {
+        for (int i = 0; i < 100 && cfs.isEnabled(key) != enabled; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(enabled, cfs.isEnabled(key));
+    }
+
+    @Test
+    public void testFailedBatchChangesNothing() throws Exception {
+        ZKFeatureSwitchWriter writer = new ZKFeatureSwitchWriter(client).setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE);
+        writer.batch().set("A", true).commit();
+        client.create().withMode(CreateMode.EPHEMERAL).forPath("/foo/B", "true".getBytes());
+
+        try {
+            // B is ephemeral, so can not have an override node
+            writer.batch().set("A", false).setOverride("B", "XYZ", true).commit();
+            fail("Should not be able to add an override below an ephemeral node");
+        } catch (KeeperException.NoChildrenForEphemeralsException e) {
+            // expected
+        }
+        assertArrayEquals("true".getBytes(), client.getData().forPath("/foo/A"));
+        assertNull(client.checkExists().forPath("/foo/B/XYZ"));
+    }
+
+    @Test
+    public void testRemoveRemovesOverrides() throws Exception {
+        ZKFeatureSwitchWriter writer =
+                new ZKFeatureSwitchWriter(client).setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).enableManifest();
+        writer.batch().set("A", true).set("B", true).setOverride("B", "XYZ", true).setOverride("B", "XYZ/host", false)
+                .setOverride("B", "other", "percent=10").commit();
+
+        writer.batch().removeOverride("B", "XYZ").commit();
+        assertNull(client.checkExists().forPath("/foo/B/XYZ"));
+        assertArrayEquals("percent=10".getBytes(), client.getData().forPath("/foo/B/other"));
+
+        try {
+            writer.batch().remove("B").setOverride("B", "XYZ", true).commit();
+            fail("Should not be able to set an override of a removed feature switch");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        writer.batch().set("A", false).remove("B").commit();
+        assertArrayEquals("false".getBytes(), client.getData().forPath("/foo/A"));
+        assertNull(client.checkExists().forPath("/foo/B"));
+
+        ZKFeatureSwitchService cfs =
+                new ZKFeatureSwitchService().setFeatureSwitchNamespace(TEST_FEATURE_SWITCH_NAMESPACE).setApplicationName("XYZ")
+                        .disableHostnameSubKey().enableManifest().start();
+        assertFalse(cfs.isEnabled("A"));
+        assertFalse(cfs.snapshot().getValues().containsKey("B"));
+        cfs.stop();
+    }
+}